@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.testutils.TestFileDocumentFetcher;
+
+/**
+ * Measures the full scrape of a chart page, from reading the html up to and including the position fixing, with
+ * both the DOM based and the streaming parser. Run with <code>gradle jmh</code>; the gc profiler reports the
+ * allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+public class Top40ScrapeBenchmark {
+
+    @Param({ "top40-example.html", "tipparade-example.html" })
+    private String page;
+
+    @Param({ "false", "true" })
+    private boolean streaming;
+
+    private Top40ScrapeService scrapeService;
+
+    private TestFileDocumentFetcher fetcher;
+
+    @Setup
+    public void setup() {
+        scrapeService = new Top40ScrapeService(streaming);
+        fetcher = new TestFileDocumentFetcher(Paths.get("src", "test", "resources", "data", page));
+    }
+
+    @Benchmark
+    public List<ChartsItem> scrape() {
+        return scrapeService.scrape(fetcher);
+    }
+}
@@ -15,6 +15,8 @@
  */
 package info.rsdev.playlists.config;
 
+import java.time.Duration;
+
 import jakarta.annotation.Resource;
 
 import org.apache.http.HttpHost;
@@ -43,7 +45,9 @@ public class SpringElasticsearchConfig {
 
     @Bean
     public ChartsItemDao chartsItemDao(RestHighLevelClient elasticClient) {
-        return new ElasticBulkWritingChartsItemDao(elasticClient);
+        // how long an insert waits until elasticsearch has acknowledged its chart items; 0 to not wait
+        var acknowledgeSeconds = Long.parseLong(env.getProperty("es.bulk.acknowledge-seconds", "60"));
+        return new ElasticBulkWritingChartsItemDao(elasticClient, Duration.ofSeconds(acknowledgeSeconds));
     }
 
     @Bean
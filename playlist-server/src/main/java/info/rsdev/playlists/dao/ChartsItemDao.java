@@ -16,10 +16,16 @@
 package info.rsdev.playlists.dao;
 
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.EditionCoverage;
 import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.domain.Watermark;
 import info.rsdev.playlists.services.MusicChart;
 
 public interface ChartsItemDao {
@@ -28,7 +34,32 @@ public interface ChartsItemDao {
 
     void insert(List<ChartsItem> chartsItems);
 
-    Collection<Song> getReleases(short year);
+    /**
+     * Get the songs that entered any of the charts in the given year, in the order in which they entered
+     */
+    default Collection<Song> getReleases(short year) {
+        return getReleases(year, EnumSet.allOf(MusicChart.class));
+    }
+
+    /**
+     * Get the songs that entered one of the given {@link MusicChart charts} in the given year, in the order in which
+     * they entered; a song that entered several of the charts is returned once
+     */
+    Collection<Song> getReleases(short year, Set<MusicChart> charts);
+
+    /**
+     * Like {@link #getReleases(short, Set)}, but the songs are handed out while they are read from the data store,
+     * where the store supports it. The stream holds resources of the data store, so it must be closed after use.
+     */
+    default Stream<Song> streamReleases(short year, Set<MusicChart> charts) {
+        return getReleases(year, charts).stream();
+    }
+
+    /**
+     * Get all stored {@link ChartsItem}s, per chart in chronological order, e.g. to load them into memory. The items
+     * are handed out while they are read from the data store, so the stream must be closed after use.
+     */
+    Stream<ChartsItem> streamChartsItems();
 
     /**
      * Get the latest year for which the data store has stored {@link ChartsItem}s for the given {@link MusicChart chart}
@@ -40,4 +71,33 @@ public interface ChartsItemDao {
     short getHighestYearStored(MusicChart chart);
 
     byte getHighestWeekStored(MusicChart chart, short year);
+
+    /**
+     * Get the latest stored edition of every chart. The watermarks are read from the data store in a single round
+     * trip, and are kept in memory for a short while afterwards, advancing with every insert.
+     *
+     * @return the watermark per {@link MusicChart chart}; charts that have no data stored are absent
+     */
+    Map<MusicChart, Watermark> getWatermarks();
+
+    /**
+     * Forget the watermarks that are kept in memory, so that the next {@link #getWatermarks()} reads them from the data
+     * store; call this before relying on them, because other instances may have stored chart items since
+     */
+    default void invalidateWatermarks() {
+    }
+
+    /**
+     * Get all chart editions that the data store has stored {@link ChartsItem}s for, in a single round trip
+     *
+     * @return the editions present, per {@link MusicChart chart}
+     */
+    EditionCoverage getEditionCoverage();
+
+    /**
+     * Get the editions of a single year of the given {@link MusicChart chart} that are present in the data store
+     *
+     * @return the editions present, for the given chart and year only
+     */
+    EditionCoverage getEditionCoverage(MusicChart chart, short year);
 }
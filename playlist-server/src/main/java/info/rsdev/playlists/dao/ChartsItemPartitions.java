@@ -0,0 +1,362 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.apache.http.client.config.RequestConfig;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.tasks.GetTaskRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the chart items over one index per decade, e.g. {@code chartitems-1970}, which are all read through the
+ * alias. A chart item is written to the partition of its year, which is created when it is needed. A query on a single
+ * year only searches the partition of that year.
+ * <p>
+ * A partition whose decade has passed for more than a year does not change anymore: it is force-merged into a single
+ * segment and its writes are blocked. This is only done while no other instance writes chart items, see
+ * {@link #closeHistoricPartitions(short)}. When chart items of such a decade are written after all, e.g. to fill a
+ * gap, the block is lifted and the partition is merged again later; a write that another instance blocked after this
+ * instance saw the partition writable, is retried after {@link #reopen(String)}.
+ * <p>
+ * Reindexing and force-merging take long on large partitions, so they run as tasks in elasticsearch that are polled
+ * for completion, instead of requests that wait for the outcome and run into the socket timeout.
+ */
+class ChartsItemPartitions {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChartsItemPartitions.class);
+
+    private static final String WRITE_BLOCK = "index.blocks.write";
+
+    private static final int YEARS_PER_PARTITION = 10;
+
+    private static final Duration TASK_POLL_INTERVAL = Duration.ofSeconds(2);
+
+    private static final Duration TASK_TIMEOUT = Duration.ofHours(1);
+
+    /* for a force-merge on an elasticsearch server that cannot run it as a task */
+    private static final RequestOptions WAIT_FOR_MERGE = RequestOptions.DEFAULT.toBuilder()
+            .setRequestConfig(RequestConfig.custom().setSocketTimeout((int) TASK_TIMEOUT.toMillis()).build())
+            .build();
+
+    private final RestHighLevelClient elasticsearchClient;
+
+    private final String alias;
+
+    /* the single index behind the alias before the partitioning */
+    private final String unpartitionedIndex;
+
+    private final String yearField;
+
+    /* creates the request for a new partition with the given name, with its settings and mappings */
+    private final Function<String, CreateIndexRequest> indexDefinition;
+
+    private final Pattern partitionName;
+
+    /* the partitions that this instance has seen to exist without a write block */
+    private final Set<String> writablePartitions = ConcurrentHashMap.newKeySet();
+
+    ChartsItemPartitions(RestHighLevelClient elasticsearchClient, String alias, String unpartitionedIndex,
+            String yearField, Function<String, CreateIndexRequest> indexDefinition) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.alias = alias;
+        this.unpartitionedIndex = unpartitionedIndex;
+        this.yearField = yearField;
+        this.indexDefinition = indexDefinition;
+        this.partitionName = Pattern.compile(Pattern.quote(alias) + "-(\\d{4})");
+    }
+
+    String partitionOf(short year) {
+        return alias + "-" + (year / YEARS_PER_PARTITION * YEARS_PER_PARTITION);
+    }
+
+    /**
+     * @return a search on the partition of the given year, which finds nothing when the partition does not exist
+     */
+    SearchRequest searchYear(short year) {
+        return new SearchRequest(partitionOf(year)).indicesOptions(IndicesOptions.lenientExpandOpen());
+    }
+
+    /**
+     * Make sure that the partition of the year exists and accepts writes
+     *
+     * @return the name of the partition
+     */
+    String writablePartitionOf(short year) {
+        var partition = partitionOf(year);
+        if (!writablePartitions.contains(partition)) {
+            synchronized (writablePartitions) {
+                if (!writablePartitions.contains(partition)) {
+                    makeWritable(partition);
+                    writablePartitions.add(partition);
+                }
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Make sure again that the partition accepts writes, after a write was refused because another instance blocked
+     * writes to it after this instance saw it writable
+     */
+    void reopen(String partition) {
+        synchronized (writablePartitions) {
+            writablePartitions.remove(partition);
+            makeWritable(partition);
+            writablePartitions.add(partition);
+        }
+    }
+
+    private void makeWritable(String partition) {
+        try {
+            if (!exists(partition)) {
+                create(partition, true);
+            } else if (isWriteBlocked(partition)) {
+                var request = new UpdateSettingsRequest(partition).settings(Settings.builder().put(WRITE_BLOCK, false));
+                elasticsearchClient.indices().putSettings(request, RequestOptions.DEFAULT);
+                LOGGER.info("Lifted the write block of elasticsearch index {}", partition);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create the alias with a first partition when there is none, and move the chart items of an unpartitioned index
+     * into partitions
+     *
+     * @return true when the data store was newly created
+     */
+    boolean setup(short currentYear) {
+        writablePartitions.clear();
+        try {
+            if (elasticsearchClient.indices().existsAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT)) {
+                if (indicesBehindAlias().contains(unpartitionedIndex)) {
+                    partition(unpartitionedIndex, currentYear);
+                }
+                return false;
+            }
+            if (exists(alias)) {
+                // the very first version of the index has the name of the alias
+                partition(alias, currentYear);
+                return false;
+            }
+            create(partitionOf(currentYear), true);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copy the chart items of the source index into the partitions of their decade. The partitions are put behind the
+     * alias, and the source index is removed, in a single atomic step; until then, the source index keeps serving. An
+     * empty source index is replaced by the partition of the current year, so that the alias always exists.
+     */
+    private void partition(String sourceIndex, short currentYear) throws IOException {
+        var decades = AggregationBuilders.histogram("decades").field(yearField).interval(YEARS_PER_PARTITION).minDocCount(1L);
+        var searchResponse = elasticsearchClient.search(new SearchRequest(sourceIndex)
+                .source(new SearchSourceBuilder().size(0).aggregation(decades)), RequestOptions.DEFAULT);
+        var aliasesRequest = new IndicesAliasesRequest()
+                .addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(sourceIndex));
+        List<String> partitions = new ArrayList<>();
+        for (Histogram.Bucket bucket : searchResponse.getAggregations().<Histogram>get("decades").getBuckets()) {
+            var decade = ((Number) bucket.getKey()).shortValue();
+            var partition = partitionOf(decade);
+            create(partition, false);
+            var ofDecade = QueryBuilders.rangeQuery(yearField).gte(decade).lt(decade + YEARS_PER_PARTITION);
+            var reindexRequest = new ReindexRequest()
+                    .setSourceIndices(sourceIndex)
+                    .setSourceQuery(ofDecade)
+                    .setDestIndex(partition)
+                    .setRefresh(true);
+            var task = elasticsearchClient.submitReindexTask(reindexRequest, RequestOptions.DEFAULT).getTask();
+            awaitTask(task, "Reindexing '" + sourceIndex + "' into '" + partition + "'");
+            // the outcome of a task is not reported in detail, so the chart items are counted instead
+            long expected = count(sourceIndex, ofDecade);
+            long copied = count(partition, ofDecade);
+            if (copied != expected) {
+                throw new RuntimeException(String.format("Reindexing '%s' into '%s' failed: %d of %d chart items were "
+                        + "copied", sourceIndex, partition, copied, expected));
+            }
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(partition).alias(alias));
+            partitions.add(partition);
+        }
+        if (partitions.isEmpty()) {
+            var partition = partitionOf(currentYear);
+            create(partition, false);
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(partition).alias(alias));
+            partitions.add(partition);
+        }
+        if (!elasticsearchClient.indices().updateAliases(aliasesRequest, RequestOptions.DEFAULT).isAcknowledged()) {
+            throw new RuntimeException("Replacing index '" + sourceIndex + "' by partitions is not acknowledged");
+        }
+        LOGGER.info("Moved the chart items of elasticsearch index {} into {}", sourceIndex, partitions);
+    }
+
+    /**
+     * Force-merge the partitions of the decades that ended before last year into a single segment, and block writes
+     * to them. Partitions that are write-blocked already are left alone. Only call this while no other instance writes
+     * chart items, e.g. while holding the ingest lease, because their writes to a partition fail once it is blocked.
+     */
+    void closeHistoricPartitions(short currentYear) {
+        try {
+            for (String partition : indicesBehindAlias()) {
+                var matcher = partitionName.matcher(partition);
+                if (!matcher.matches() || Integer.parseInt(matcher.group(1)) + YEARS_PER_PARTITION >= currentYear
+                        || isWriteBlocked(partition)) {
+                    continue;
+                }
+                long start = System.currentTimeMillis();
+                forceMerge(partition);
+                var request = new UpdateSettingsRequest(partition).settings(Settings.builder().put(WRITE_BLOCK, true));
+                elasticsearchClient.indices().putSettings(request, RequestOptions.DEFAULT);
+                writablePartitions.remove(partition);
+                LOGGER.info("Force-merged elasticsearch index {} and blocked writes to it in {}ms.", partition,
+                        System.currentTimeMillis() - start);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge the partition into a single segment, as a task; elasticsearch servers before version 7.7 cannot run a
+     * force-merge as a task, so on those the request waits for the merge to complete
+     */
+    private void forceMerge(String partition) throws IOException {
+        var request = new Request("POST", "/" + partition + "/_forcemerge");
+        request.addParameter("max_num_segments", "1");
+        request.addParameter("wait_for_completion", "false");
+        Map<String, Object> response;
+        try {
+            var httpResponse = elasticsearchClient.getLowLevelClient().performRequest(request);
+            try (var content = httpResponse.getEntity().getContent()) {
+                response = XContentHelper.convertToMap(JsonXContent.jsonXContent, content, false);
+            }
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != RestStatus.BAD_REQUEST.getStatus()) {
+                throw e;
+            }
+            elasticsearchClient.indices().forcemerge(new ForceMergeRequest(partition).maxNumSegments(1), WAIT_FOR_MERGE);
+            return;
+        }
+        awaitTask((String) response.get("task"), "Force-merging '" + partition + "'");
+    }
+
+    /**
+     * Wait for a task in elasticsearch to complete, by polling it
+     *
+     * @param task        the id of the task, as 'node:number'
+     * @param description what the task does, for the exception messages
+     */
+    private void awaitTask(String task, String description) throws IOException {
+        var separator = task.lastIndexOf(':');
+        var request = new GetTaskRequest(task.substring(0, separator), Long.parseLong(task.substring(separator + 1)));
+        long deadline = System.nanoTime() + TASK_TIMEOUT.toNanos();
+        while (true) {
+            var response = elasticsearchClient.tasks().get(request, RequestOptions.DEFAULT);
+            if (response.isEmpty()) {
+                throw new RuntimeException(description + " failed: task " + task + " is unknown");
+            }
+            if (response.get().isCompleted()) {
+                return;
+            }
+            if (System.nanoTime() - deadline > 0L) {
+                throw new RuntimeException(description + " did not complete within " + TASK_TIMEOUT);
+            }
+            try {
+                Thread.sleep(TASK_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(description + " was interrupted; task " + task + " goes on", e);
+            }
+        }
+    }
+
+    private long count(String index, QueryBuilder query) throws IOException {
+        var request = new CountRequest(index).source(new SearchSourceBuilder().query(query));
+        return elasticsearchClient.count(request, RequestOptions.DEFAULT).getCount();
+    }
+
+    private Set<String> indicesBehindAlias() throws IOException {
+        return elasticsearchClient.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT).getAliases()
+                .keySet();
+    }
+
+    private boolean exists(String index) throws IOException {
+        return elasticsearchClient.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT);
+    }
+
+    private boolean isWriteBlocked(String index) throws IOException {
+        var response = elasticsearchClient.indices().getSettings(new GetSettingsRequest().indices(index).names(WRITE_BLOCK),
+                RequestOptions.DEFAULT);
+        return Boolean.parseBoolean(response.getSetting(index, WRITE_BLOCK));
+    }
+
+    private void create(String partition, boolean withAlias) throws IOException {
+        var request = indexDefinition.apply(partition);
+        if (withAlias) {
+            request.alias(new Alias(alias));
+        }
+        try {
+            if (!elasticsearchClient.indices().create(request, RequestOptions.DEFAULT).isAcknowledged()) {
+                throw new RuntimeException("Creation of index '" + partition + "' is not acknowledged");
+            }
+            LOGGER.info("Created elasticsearch index {}", partition);
+        } catch (ElasticsearchStatusException e) {
+            // another instance may have created it in the meantime
+            if (e.status() != RestStatus.BAD_REQUEST || !exists(partition)) {
+                throw e;
+            }
+        }
+    }
+}
@@ -7,29 +7,113 @@ public final class ChartsItemSqlConstants {
 	}
 
 	/*
-	 * For now, just like in the NoSql setup, do not apply data normalization. We
-	 * may do that later.
+	 * A song is stored once in the songs dictionary; the weekly chart entries refer to it by id, and to their chart
+	 * by the compact id of the MusicChart. The songs table uses a binary collation, so that songs are told apart
+	 * exactly like Song.equals() does.
 	 */
-	public static final String CHART_ITEM_TABLE = "chart_items";
+	public static final String SONG_TABLE = "songs";
+	public static final String CHART_ENTRY_TABLE = "chart_entries";
+	public static final String RELEASE_TABLE = "releases";
 
-	public static final String CHART_NAME_COLUMN = "chart_id";
+	public static final String SONG_ID_COLUMN = "id";
+	public static final String ARTIST_COLUMN = "artist";
+	public static final String TITLE_COLUMN = "title";
+
+	public static final String CHART_ID_COLUMN = "chart_id";
 	public static final String YEAR_COLUMN = "year";
 	public static final String WEEK_COLUMN = "week_number";
 	public static final String POSITION_COLUMN = "position";
 	public static final String IS_NEW_IN_CHART = "is_newcommer";
-	public static final String ARTIST_COLUMN = "artist";
-	public static final String TITLE_COLUMN = "title";
-	
-	public static final String GET_NEW_RELEASES_QUERY = String.format("select %s, %s from %s where %s = ? and %s = true  group by %s, %s order by %s",
-	        ARTIST_COLUMN, TITLE_COLUMN, CHART_ITEM_TABLE, YEAR_COLUMN, IS_NEW_IN_CHART, ARTIST_COLUMN, TITLE_COLUMN, WEEK_COLUMN);
+	public static final String SONG_REF_COLUMN = "song_id";
+	public static final String FIRST_WEEK_COLUMN = "first_week";
 	
-	public static final String GET_HIGHEST_YEAR = String.format("select max(%s) from %s where %s = ?", 
-	        YEAR_COLUMN, CHART_ITEM_TABLE, CHART_NAME_COLUMN);
+	/*
+	 * The releases of a year in the given charts are a range of the primary key; a song that entered several of
+	 * the charts is returned once. Format with the placeholders for the chart ids.
+	 */
+	public static final String GET_NEW_RELEASES_QUERY_TEMPLATE = String.format("select s.%s, s.%s from %s r join %s s on s.%s = r.%s "
+	        + "where r.%s = ? and r.%s in (%%s) group by r.%s order by min(r.%s)",
+	        ARTIST_COLUMN, TITLE_COLUMN, RELEASE_TABLE, SONG_TABLE, SONG_ID_COLUMN, SONG_REF_COLUMN,
+	        YEAR_COLUMN, CHART_ID_COLUMN, SONG_REF_COLUMN, FIRST_WEEK_COLUMN);
 	
+    /* All chart entries with their songs, in the order of the primary key */
+    public static final String GET_CHART_ENTRIES = String.format("select e.%s, e.%s, e.%s, e.%s, e.%s, s.%s, s.%s "
+            + "from %s e join %s s on s.%s = e.%s order by e.%s, e.%s, e.%s, e.%s",
+            CHART_ID_COLUMN, YEAR_COLUMN, WEEK_COLUMN, POSITION_COLUMN, IS_NEW_IN_CHART, ARTIST_COLUMN, TITLE_COLUMN,
+            CHART_ENTRY_TABLE, SONG_TABLE, SONG_ID_COLUMN, SONG_REF_COLUMN,
+            CHART_ID_COLUMN, YEAR_COLUMN, WEEK_COLUMN, POSITION_COLUMN);
+
     public static final String GET_HIGHEST_WEEK = String.format("select max(%s) from %s where %s = ? and %s = ?", 
-            WEEK_COLUMN, CHART_ITEM_TABLE, CHART_NAME_COLUMN, YEAR_COLUMN);
+            WEEK_COLUMN, CHART_ENTRY_TABLE, CHART_ID_COLUMN, YEAR_COLUMN);
     
-    public static final String INSERT_CHART_ITEM = String.format("insert into %s (%s, %s, %s, %s, %s, %s, %s) values (?, ?, ?, ?, ?, ?, ?)",
-            CHART_ITEM_TABLE, CHART_NAME_COLUMN, YEAR_COLUMN, WEEK_COLUMN, POSITION_COLUMN, IS_NEW_IN_CHART, ARTIST_COLUMN, TITLE_COLUMN);
+    /* The latest week of the latest year of every chart */
+    public static final String GET_WATERMARKS = String.format("select e.%s, e.%s, max(e.%s) as %s from %s e "
+            + "join (select %s, max(%s) as %s from %s group by %s) latest on latest.%s = e.%s and latest.%s = e.%s "
+            + "group by e.%s, e.%s",
+            CHART_ID_COLUMN, YEAR_COLUMN, WEEK_COLUMN, WEEK_COLUMN, CHART_ENTRY_TABLE,
+            CHART_ID_COLUMN, YEAR_COLUMN, YEAR_COLUMN, CHART_ENTRY_TABLE, CHART_ID_COLUMN, CHART_ID_COLUMN, CHART_ID_COLUMN, YEAR_COLUMN, YEAR_COLUMN,
+            CHART_ID_COLUMN, YEAR_COLUMN);
+
+    public static final String GET_EDITIONS = String.format("select distinct %s, %s, %s from %s",
+            CHART_ID_COLUMN, YEAR_COLUMN, WEEK_COLUMN, CHART_ENTRY_TABLE);
+
+    public static final String GET_WEEKS_OF_YEAR = String.format("select distinct %s from %s where %s = ? and %s = ?",
+            WEEK_COLUMN, CHART_ENTRY_TABLE, CHART_ID_COLUMN, YEAR_COLUMN);
+
+    /*
+     * The insert statements are multi-row: they are completed with as many row placeholders as there are rows to
+     * insert, separated by commas.
+     */
+    public static final String SONG_ROW = "(?, ?)";
+    public static final String CHART_ENTRY_ROW = "(?, ?, ?, ?, ?, ?)";
+    public static final String RELEASE_ROW = "(?, ?, ?, ?)";
+
+    /*
+     * Followed by SKIP_DUPLICATE_SONG. Unlike 'insert ignore', only a song that is in the dictionary already is
+     * skipped; a value that does not fit in its column fails the statement.
+     */
+    public static final String INSERT_SONGS = String.format("insert into %s (%s, %s) values ",
+            SONG_TABLE, ARTIST_COLUMN, TITLE_COLUMN);
+
+    public static final String SKIP_DUPLICATE_SONG = String.format(" on duplicate key update %s = %s",
+            SONG_ID_COLUMN, SONG_ID_COLUMN);
+
+    /* Followed by as many (?, ?) pairs as there are songs to look up, separated by commas, and a closing bracket */
+    public static final String GET_SONG_IDS_PREFIX = String.format("select %s, %s, %s from %s where (%s, %s) in (",
+            SONG_ID_COLUMN, ARTIST_COLUMN, TITLE_COLUMN, SONG_TABLE, ARTIST_COLUMN, TITLE_COLUMN);
+
+    /* Preceded by the verb that decides what happens to duplicate entries, see DuplicateChartEntries */
+    public static final String INTO_CHART_ENTRIES = String.format(" into %s (%s, %s, %s, %s, %s, %s) values ",
+            CHART_ENTRY_TABLE, CHART_ID_COLUMN, YEAR_COLUMN, WEEK_COLUMN, POSITION_COLUMN, IS_NEW_IN_CHART, SONG_REF_COLUMN);
+
+    public static final String REPLACE_DUPLICATE_CHART_ENTRY = String.format(" on duplicate key update %s = values(%s), %s = values(%s)",
+            IS_NEW_IN_CHART, IS_NEW_IN_CHART, SONG_REF_COLUMN, SONG_REF_COLUMN);
+
+    public static final String INSERT_RELEASES = String.format("insert into %s (%s, %s, %s, %s) values ",
+            RELEASE_TABLE, YEAR_COLUMN, CHART_ID_COLUMN, SONG_REF_COLUMN, FIRST_WEEK_COLUMN);
+
+    /* The songs that entered the chart as a newcomer in the given edition */
+    public static final String GET_NEW_SONGS_OF_EDITION = String.format(
+            "select %s from %s where %s = ? and %s = ? and %s = ? and %s = true",
+            SONG_REF_COLUMN, CHART_ENTRY_TABLE, CHART_ID_COLUMN, YEAR_COLUMN, WEEK_COLUMN, IS_NEW_IN_CHART);
+
+    /*
+     * The releases of songs whose chart entries were replaced are derived again from the chart entries: first the
+     * releases are deleted, then they are inserted again. Format with the placeholders for the song ids.
+     */
+    public static final String DELETE_RELEASES_TEMPLATE = String.format(
+            "delete from %s where %s = ? and %s = ? and %s in (%%s)",
+            RELEASE_TABLE, YEAR_COLUMN, CHART_ID_COLUMN, SONG_REF_COLUMN);
+
+    public static final String DERIVE_RELEASES_TEMPLATE = String.format(
+            "insert into %s (%s, %s, %s, %s) select %s, %s, %s, min(%s) from %s "
+                    + "where %s = ? and %s = ? and %s = true and %s in (%%s) group by %s, %s, %s",
+            RELEASE_TABLE, YEAR_COLUMN, CHART_ID_COLUMN, SONG_REF_COLUMN, FIRST_WEEK_COLUMN,
+            YEAR_COLUMN, CHART_ID_COLUMN, SONG_REF_COLUMN, WEEK_COLUMN, CHART_ENTRY_TABLE,
+            YEAR_COLUMN, CHART_ID_COLUMN, IS_NEW_IN_CHART, SONG_REF_COLUMN, YEAR_COLUMN, CHART_ID_COLUMN, SONG_REF_COLUMN);
+
+    /* Editions may be inserted out of order, so keep the earliest week */
+    public static final String KEEP_FIRST_RELEASE = String.format(" on duplicate key update %s = least(%s, values(%s))",
+            FIRST_WEEK_COLUMN, FIRST_WEEK_COLUMN, FIRST_WEEK_COLUMN);
 	
 }
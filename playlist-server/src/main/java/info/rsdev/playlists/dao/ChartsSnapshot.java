@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import info.rsdev.playlists.domain.Song;
+
+/**
+ * Reads and writes the complete chart history and song dictionary in a compact binary file, so that an instance can
+ * start serving without reading all chart items from the data store. The file is memory-mapped read-only and its
+ * columns are copied in bulk. The layout, in big endian byte order:
+ * <pre>
+ * int    magic number 'PLCS'
+ * int    format version
+ * long   creation time, in milliseconds since the epoch
+ * int    number of rows
+ * int    number of songs
+ * songs  per song the artist and the title, each as an int length followed by that many bytes of UTF-8
+ * rows   one column after the other: chart ids (byte), years (short), week numbers (byte), positions (byte),
+ *        new release flags (byte) and song references (int), which are indices into the songs
+ * int    CRC32 checksum of all preceding bytes
+ * </pre>
+ */
+final class ChartsSnapshot {
+
+    private static final int MAGIC = 0x504C4353;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+    private static final int BYTES_PER_ROW = 10;
+    private static final int CHECKSUM_BYTES = 4;
+
+    /**
+     * The chart items in columns; only the first {@code rows} elements of the arrays are used
+     */
+    record Columns(int rows, byte[] chartIds, short[] years, byte[] weekNumbers, byte[] positions,
+            boolean[] newReleases, int[] songRefs, Song[] songs) {
+    }
+
+    private ChartsSnapshot() {
+        // only static methods
+    }
+
+    /**
+     * Write the columns to the file; the file is replaced atomically, so that a reader never sees half a snapshot
+     */
+    static void write(Path file, Columns columns) throws IOException {
+        var encodedSongs = new byte[columns.songs().length * 2][];
+        long size = HEADER_BYTES + (long) columns.rows() * BYTES_PER_ROW + CHECKSUM_BYTES;
+        for (int i = 0; i < columns.songs().length; i++) {
+            encodedSongs[i * 2] = columns.songs()[i].artist().getBytes(StandardCharsets.UTF_8);
+            encodedSongs[i * 2 + 1] = columns.songs()[i].title().getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES * 2 + encodedSongs[i * 2].length + encodedSongs[i * 2 + 1].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("A snapshot of " + size + " bytes is not supported");
+        }
+
+        var buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis())
+                .putInt(columns.rows()).putInt(columns.songs().length);
+        for (byte[] encoded : encodedSongs) {
+            buffer.putInt(encoded.length).put(encoded);
+        }
+        int rows = columns.rows();
+        buffer.put(columns.chartIds(), 0, rows);
+        buffer.asShortBuffer().put(columns.years(), 0, rows);
+        buffer.position(buffer.position() + rows * Short.BYTES);
+        buffer.put(columns.weekNumbers(), 0, rows);
+        buffer.put(columns.positions(), 0, rows);
+        for (int row = 0; row < rows; row++) {
+            buffer.put((byte) (columns.newReleases()[row] ? 1 : 0));
+        }
+        buffer.asIntBuffer().put(columns.songRefs(), 0, rows);
+        buffer.position(buffer.position() + rows * Integer.BYTES);
+        var checksum = new CRC32();
+        checksum.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) checksum.getValue());
+
+        var directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        var tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (var channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Read the columns from the file
+     *
+     * @throws IOException when the file cannot be read, is of another format version or is corrupt
+     */
+    static Columns read(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + CHECKSUM_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot of the charts: " + file);
+            }
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot of the charts: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Snapshot %s has format version %d, expected %d", file, version, VERSION));
+            }
+            var checksum = new CRC32();
+            checksum.update(buffer.slice(0, (int) size - CHECKSUM_BYTES));
+            if ((int) checksum.getValue() != buffer.getInt((int) size - CHECKSUM_BYTES)) {
+                throw new IOException("Checksum mismatch, the snapshot is corrupt: " + file);
+            }
+
+            buffer.getLong(); // the creation time is for inspection only
+            int rows = buffer.getInt();
+            var songs = new Song[buffer.getInt()];
+            for (int i = 0; i < songs.length; i++) {
+                songs[i] = new Song(readString(buffer), readString(buffer));
+            }
+            var chartIds = new byte[rows];
+            buffer.get(chartIds);
+            var years = new short[rows];
+            buffer.asShortBuffer().get(years);
+            buffer.position(buffer.position() + rows * Short.BYTES);
+            var weekNumbers = new byte[rows];
+            buffer.get(weekNumbers);
+            var positions = new byte[rows];
+            buffer.get(positions);
+            var newReleases = new boolean[rows];
+            for (int row = 0; row < rows; row++) {
+                newReleases[row] = buffer.get() != 0;
+            }
+            var songRefs = new int[rows];
+            buffer.asIntBuffer().get(songRefs);
+            for (int songRef : songRefs) {
+                if (songRef < 0 || songRef >= songs.length) {
+                    throw new IOException("Snapshot " + file + " refers to an unknown song: " + songRef);
+                }
+            }
+            return new Columns(rows, chartIds, years, weekNumbers, positions, newReleases, songRefs, songs);
+        } catch (RuntimeException e) {
+            // e.g. a BufferUnderflowException when the counts do not match the size of the file
+            throw new IOException("Snapshot " + file + " is corrupt", e);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        var encoded = new byte[buffer.getInt()];
+        buffer.get(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+}
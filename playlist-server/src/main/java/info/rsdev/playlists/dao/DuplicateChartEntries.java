@@ -0,0 +1,51 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.REPLACE_DUPLICATE_CHART_ENTRY;
+
+/**
+ * What to do when a chart entry is inserted for a chart position that is taken already, i.e. when the chart entry
+ * violates the primary key (chart, year, week, position) of the chart entries
+ */
+public enum DuplicateChartEntries {
+
+    /** Fail the insert; the default, since the ingest never writes an edition twice */
+    FAIL("insert", ""),
+
+    /** Keep the stored chart entry, e.g. to resume an interrupted bulk load */
+    IGNORE("insert ignore", ""),
+
+    /** Overwrite the stored chart entry, e.g. to correct previously loaded data */
+    REPLACE("insert", REPLACE_DUPLICATE_CHART_ENTRY);
+
+    private final String verb;
+
+    private final String suffix;
+
+    DuplicateChartEntries(String verb, String suffix) {
+        this.verb = verb;
+        this.suffix = suffix;
+    }
+
+    String verb() {
+        return verb;
+    }
+
+    String suffix() {
+        return suffix;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.util.List;
+
+import info.rsdev.playlists.services.ChartEdition;
+
+/**
+ * Keeps the chart editions that the charts website does not have, so that all instances that share a database know
+ * them and none of them asks for them again
+ */
+public interface EditionCalendarDao {
+
+    List<ChartEdition> getAbsentEditions();
+
+    /**
+     * Remember that the given edition does not exist; adding an edition that is known to be absent already is a no-op
+     */
+    void addAbsentEdition(ChartEdition edition);
+}
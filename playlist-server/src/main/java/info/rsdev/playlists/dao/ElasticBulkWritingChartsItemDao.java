@@ -1,18 +1,22 @@
 package info.rsdev.playlists.dao;
 
 import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.EditionCoverage;
 import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.domain.Watermark;
 import info.rsdev.playlists.services.MusicChart;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
-import org.elasticsearch.client.indices.CreateIndexResponse;
-import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
@@ -20,20 +24,50 @@ import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.metrics.ParsedMax;
+import org.elasticsearch.search.aggregations.metrics.ParsedMin;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
-
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stores the chart items in Elasticsearch, writing them with a {@link BulkProcessor}. Every chart item has a document id
+ * made of its chart, year, week and position, so storing an edition again overwrites its documents instead of adding
+ * duplicates. Every chart item is written to the partition of its decade, see {@link ChartsItemPartitions}; reads go
+ * through an alias over all partitions, or to a single partition when they are about a single year. Chart items that
+ * Elasticsearch rejects because it is overloaded are retried with an exponential backoff; other failures are counted
+ * and logged. An insert waits until Elasticsearch has acknowledged its chart items before the watermarks advance, and
+ * fails when some of them were not stored.
+ */
 public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticBulkWritingChartsItemDao.class);
 
+    /* the alias that reads go through; the first version of the index had this name itself */
     private static final String CHARTSITEM_INDEX_NAME = "chartitems";
+    /* the single index behind the alias, before the index was partitioned */
+    private static final String CHARTSITEM_INDEX_V2 = CHARTSITEM_INDEX_NAME + "-v2";
     private static final String CHARTSITEM_DOCTYPE = "chartitem";
 
     private static final String CHARTNAME = "chartName";
@@ -43,17 +77,40 @@ public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializ
     private static final String IS_NEW_IN_CHART = "isNewRelease";
     private static final String ARTIST = "artist";
     private static final String TITLE = "title";
+    private static final String KEYWORD = "keyword";
+
+    /* orders the entries of a year like they appeared in the charts */
+    private static final String FIRST_ENTRY = "firstEntry";
+    private static final String FIRST_ENTRY_SCRIPT = String.format("doc['%s'].value * 128 + doc['%s'].value", WEEK, POSITION);
 
-    private static final int RETURN_NO_DOCUMENTS = 0;
-    private static final int ROUNDUP_FACTOR = 100;
+    private static final int EDITIONS_PER_PAGE = 1000;
+    private static final int SONGS_PER_PAGE = 1000;
+    private static final int MAX_WEEKS_PER_YEAR = 54;
+    private static final int HITS_PER_PAGE = 5000;
+    private static final int MAX_RETRIES = 8;
 
 
     private RestHighLevelClient elasticsearchClient;
 
     private BulkProcessor bulkProcessor;
 
+    private final WatermarkCache watermarks = new WatermarkCache();
+
+    private final ChartsItemPartitions partitions;
+
+    /* how long an insert waits for its chart items to be acknowledged; zero to not wait */
+    private final Duration acknowledgeTimeout;
+
+    /* the number of chart items handed to the bulk processor that are not acknowledged yet, and the number of chart
+     * items that could not be stored; both guarded by the bulkLock */
+    private final ReentrantLock bulkLock = new ReentrantLock();
+    private final Condition acknowledged = bulkLock.newCondition();
+    private long pendingItems;
+    private long failedItems;
+
     /* This class contains callback methods that are called prior to sending a bulk request and on the bulk response,
-     * success or failure.
+     * success or failure. The bulk processor calls them after rejected items have been retried. Items that are refused
+     * because writes to their partition were blocked by another instance, are retried once more, see retryBlocked.
      */
     private BulkProcessor.Listener listener = new BulkProcessor.Listener() {
 
@@ -64,28 +121,71 @@ public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializ
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
-            //no implementation
+            List<BulkItemResponse> failures = new ArrayList<>();
+            List<DocWriteRequest<?>> blocked = new ArrayList<>();
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed() && item.status() == RestStatus.FORBIDDEN) {
+                    blocked.add(request.requests().get(item.getItemId()));
+                } else if (item.isFailed()) {
+                    failures.add(item);
+                }
+            }
+            if (!failures.isEmpty()) {
+                LOGGER.error("{} of {} chart items in bulk request {} were not stored, e.g. {}: {}", failures.size(),
+                        request.numberOfActions(), executionId, failures.get(0).getId(), failures.get(0).getFailureMessage());
+            }
+            // the blocked chart items stay pending until they are retried
+            settle(request.numberOfActions() - blocked.size(), failures.size());
+            if (!blocked.isEmpty()) {
+                // not on the thread of the http client, which must not wait for a response itself
+                Thread.ofVirtual().name("bulk-retry").start(() -> retryBlocked(executionId, blocked));
+            }
         }
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
-            //no implementation
+            LOGGER.error("Bulk request {} with {} chart items failed", executionId, request.numberOfActions(), failure);
+            settle(request.numberOfActions(), request.numberOfActions());
         }
     };
 
 
-    public ElasticBulkWritingChartsItemDao(RestHighLevelClient elasticsearchClient) {
+    public ElasticBulkWritingChartsItemDao(RestHighLevelClient elasticsearchClient, Duration acknowledgeTimeout) {
         this.elasticsearchClient = elasticsearchClient;
-        this.bulkProcessor = BulkProcessor.builder((bulkRequest, listener) -> this.elasticsearchClient.bulkAsync(bulkRequest, RequestOptions.DEFAULT, listener), listener)
+        this.acknowledgeTimeout = acknowledgeTimeout;
+        this.partitions = new ChartsItemPartitions(elasticsearchClient, CHARTSITEM_INDEX_NAME, CHARTSITEM_INDEX_V2, YEAR,
+                this::createChartsItemIndex);
+        var retryRejected = BackoffPolicy.wrap(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100L), MAX_RETRIES),
+                () -> LOGGER.warn("Elasticsearch rejected chart items; retrying them after a backoff"));
+        this.bulkProcessor = BulkProcessor.builder(this::sendBulk, listener)
                 .setBulkActions(-1)
                 .setBulkSize(new ByteSizeValue(5L, ByteSizeUnit.MB))
                 .setConcurrentRequests(3)
                 .setFlushInterval(TimeValue.timeValueSeconds(10L))
+                .setBackoffPolicy(retryRejected)
                 .build();
     }
 
     /**
-     * Define the JSON to create the chartsitem Doctype in ElasticSearch
+     * Send the bulk request on a thread of its own. The asynchronous call of the high level client does not link against
+     * the newer low level client that Spring Boot provides, so the synchronous call is used.
+     */
+    private void sendBulk(BulkRequest bulkRequest, ActionListener<BulkResponse> bulkListener) {
+        Thread.ofVirtual().name("bulk-request").start(() -> {
+            BulkResponse response;
+            try {
+                response = elasticsearchClient.bulk(bulkRequest, RequestOptions.DEFAULT);
+            } catch (IOException | RuntimeException e) {
+                bulkListener.onFailure(e);
+                return;
+            }
+            bulkListener.onResponse(response);
+        });
+    }
+
+    /**
+     * Define the JSON to create the chartsitem Doctype in ElasticSearch. Artist and title have a keyword sub-field,
+     * with doc values, so that the songs can be aggregated on.
      */
     private XContentBuilder getChartsItemMapping() throws IOException {
         return XContentFactory.jsonBuilder()
@@ -97,64 +197,166 @@ public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializ
                 .startObject(WEEK).field("type", "byte").endObject()
                 .startObject(POSITION).field("type", "byte").endObject()
                 .startObject(IS_NEW_IN_CHART).field("type", "boolean").endObject()
-                .startObject(ARTIST).field("type", "text").endObject()
-                .startObject(TITLE).field("type", "text").endObject()
+                .startObject(ARTIST).field("type", "text")
+                    .startObject("fields").startObject(KEYWORD).field("type", KEYWORD).endObject().endObject()
+                .endObject()
+                .startObject(TITLE).field("type", "text")
+                    .startObject("fields").startObject(KEYWORD).field("type", KEYWORD).endObject().endObject()
+                .endObject()
                 .endObject()
                 .endObject()
                 .endObject();
     }
+    /**
+     * Prepare the partitions behind the alias, see {@link ChartsItemPartitions}. An index from before the
+     * partitioning is moved into partitions.
+     */
     @Override
     public boolean setupStoreWhenNeeded() {
-        if (!doesChartsItemIndexExist()) {
-            createChartsItemIndex();
-            return true;
-        }
-        return false;
+        return partitions.setup((short) LocalDate.now().getYear());
     }
 
-    private boolean doesChartsItemIndexExist() {
-        try {
-            var indexRequest = new GetIndexRequest(CHARTSITEM_INDEX_NAME);
-            return elasticsearchClient.indices().exists(indexRequest, RequestOptions.DEFAULT);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
+    /**
+     * Force-merge the partitions of past decades and make them read-only
+     */
+    @Override
+    public void compactStore() {
+        partitions.closeHistoricPartitions((short) LocalDate.now().getYear());
     }
 
-    private void createChartsItemIndex() {
-        var request = new CreateIndexRequest(CHARTSITEM_INDEX_NAME);
+    private CreateIndexRequest createChartsItemIndex(String name) {
+        var request = new CreateIndexRequest(name);
+        // sort the index like the primary key of the releases table, so that the documents of a year and chart are
+        // stored together and a query for them can stop early
         request.settings(Settings.builder()
                 .put("index.number_of_shards", 1)
-                .put("index.number_of_replicas", 0));
-
-
-        CreateIndexResponse response;
+                .put("index.number_of_replicas", 0)
+                .putList("index.sort.field", YEAR, CHARTNAME, IS_NEW_IN_CHART, WEEK)
+                .putList("index.sort.order", "asc", "asc", "desc", "asc"));
         try {
             request.mapping(getChartsItemMapping());
-            response = elasticsearchClient.indices().create(request, RequestOptions.DEFAULT);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-
-        if (!response.isAcknowledged()) {
-            throw new RuntimeException("Creation of index '"+CHARTSITEM_INDEX_NAME+"' is not acknowledged");
-        }
-        LOGGER.info("Created elasticsearch index {}", CHARTSITEM_INDEX_NAME);
+        return request;
     }
 
     @Override
     public void insert(ChartsItem chartsItem) {
-        var request = new UpdateRequest(CHARTSITEM_INDEX_NAME, UUID.randomUUID().toString());
-        request.docAsUpsert(true);
-        request.doc(toContentBuilder(chartsItem));
+        insert(List.of(chartsItem));
+    }
+
+    /* Adding blocks while the maximum number of concurrent bulk requests is in flight, which throttles the ingest */
+    private void addToBulk(ChartsItem chartsItem) {
+        var request = new IndexRequest(partitions.writablePartitionOf(chartsItem.year())).id(documentId(chartsItem));
+        request.source(toContentBuilder(chartsItem));
         this.bulkProcessor.add(request);
     }
 
+    /* the ranking of an edition is unique, so the position identifies a chart item */
+    private static String documentId(ChartsItem chartsItem) {
+        var chart = MusicChart.fromChartName(chartsItem.chartName())
+                .orElseThrow(() -> new IllegalArgumentException("Unknown chart: " + chartsItem.chartName()));
+        return String.format("%d-%d-%d-%d", chart.id(), chartsItem.year(), chartsItem.weekNumber(), chartsItem.position());
+    }
+
     @Override
     public void insert(List<ChartsItem> chartsItems) {
-        if (chartsItems != null) {
-            chartsItems.forEach(this::insert);
+        if (chartsItems == null || chartsItems.isEmpty()) {
+            return;
+        }
+        long failedBefore;
+        bulkLock.lock();
+        try {
+            pendingItems += chartsItems.size();
+            failedBefore = failedItems;
+        } finally {
+            bulkLock.unlock();
+        }
+        int added = 0;
+        try {
+            for (ChartsItem chartsItem : chartsItems) {
+                addToBulk(chartsItem);
+                added++;
+            }
+            if (acknowledgeTimeout.isZero()) {
+                // the chart items are stored later on, if at all
+                watermarks.invalidate();
+                return;
+            }
+            bulkProcessor.flush();
+            // failures of concurrent inserts are counted as well, which errs on the safe side
+            var failed = awaitAcknowledgement() - failedBefore;
+            if (failed > 0) {
+                throw new IllegalStateException(failed + " chart items were not stored in elasticsearch");
+            }
+        } catch (RuntimeException e) {
+            // the chart items that never reached the bulk processor are not acknowledged, so they must not stay pending
+            // for the next inserts to wait for
+            settle(chartsItems.size() - added, 0);
+            // some of the chart items may have been stored
+            watermarks.invalidate();
+            throw e;
+        }
+        watermarks.advance(chartsItems);
+    }
+
+    /**
+     * Store the chart items again that were refused because their partition was write-blocked by another instance,
+     * after lifting the block
+     */
+    private void retryBlocked(long executionId, List<DocWriteRequest<?>> blocked) {
+        LOGGER.warn("{} chart items in bulk request {} were refused by a write-blocked partition; retrying them",
+                blocked.size(), executionId);
+        int failed = blocked.size();
+        try {
+            blocked.stream().map(DocWriteRequest::index).distinct().forEach(partitions::reopen);
+            var response = elasticsearchClient.bulk(new BulkRequest().add(blocked), RequestOptions.DEFAULT);
+            failed = (int) Arrays.stream(response.getItems()).filter(BulkItemResponse::isFailed).count();
+            if (failed > 0) {
+                LOGGER.error("{} of {} retried chart items of bulk request {} were not stored: {}", failed,
+                        blocked.size(), executionId, response.buildFailureMessage());
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Retrying {} chart items of bulk request {} failed", blocked.size(), executionId, e);
+        } finally {
+            settle(blocked.size(), failed);
+        }
+    }
+
+    private void settle(int items, int failed) {
+        bulkLock.lock();
+        try {
+            pendingItems -= items;
+            failedItems += failed;
+            acknowledged.signalAll();
+        } finally {
+            bulkLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until all chart items handed to the bulk processor are acknowledged
+     *
+     * @return the number of chart items that could not be stored since this dao was created
+     */
+    private long awaitAcknowledgement() {
+        bulkLock.lock();
+        try {
+            long remainingNanos = acknowledgeTimeout.toNanos();
+            while (pendingItems > 0) {
+                if (remainingNanos <= 0L) {
+                    throw new IllegalStateException(String.format("Elasticsearch did not acknowledge %d chart items "
+                            + "within %s", pendingItems, acknowledgeTimeout));
+                }
+                remainingNanos = acknowledged.awaitNanos(remainingNanos);
+            }
+            return failedItems;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for elasticsearch", e);
+        } finally {
+            bulkLock.unlock();
         }
     }
     
@@ -179,22 +381,47 @@ public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializ
         this.bulkProcessor.close();
     }
 
+    /**
+     * Collect the songs that entered the charts with a composite aggregation on artist and title, so that every song
+     * is transferred once. The buckets come in the order of the song, so they are sorted on their first entry here.
+     */
     @Override
-    public Collection<Song> getReleases(short year) {
-        var expectedResults = getReleasesCount(year, ROUNDUP_FACTOR);
-        if (expectedResults == 0) {
+    public Collection<Song> getReleases(short year, Set<MusicChart> charts) {
+        if (charts.isEmpty()) {
             return Collections.emptyList();
         }
-
-        var searchRequest = makeSearchRequestReleasesByYear(year, expectedResults);
+        List<CompositeValuesSourceBuilder<?>> sources = List.of(
+                new TermsValuesSourceBuilder(ARTIST).field(ARTIST + "." + KEYWORD),
+                new TermsValuesSourceBuilder(TITLE).field(TITLE + "." + KEYWORD));
+        List<Release> releases = new ArrayList<>();
+        Map<String, Object> afterKey = null;
         try {
-            var searchResponse = elasticsearchClient.search(searchRequest, RequestOptions.DEFAULT);
-            Set<Song> releases = new LinkedHashSet<>();
-            searchResponse.getHits().forEach(searchHit -> releases.add(makeSong(searchHit.getSourceAsMap())));
-            return releases;
+            do {
+                var songs = new CompositeAggregationBuilder("songs", sources).size(SONGS_PER_PAGE)
+                        .subAggregation(AggregationBuilders.min(FIRST_ENTRY).script(new Script(FIRST_ENTRY_SCRIPT)));
+                if (afterKey != null) {
+                    songs.aggregateAfter(afterKey);
+                }
+                var searchSourceBuilder = makeSearchRequestReleasesByYear(year, charts).aggregation(songs);
+                var searchResponse = elasticsearchClient.search(partitions.searchYear(year).source(searchSourceBuilder),
+                        RequestOptions.DEFAULT);
+                if (searchResponse.getAggregations() == null) {
+                    break; // the partition of the year does not exist
+                }
+                var result = searchResponse.getAggregations().<ParsedComposite>get("songs");
+                result.getBuckets().forEach(bucket -> releases.add(new Release(
+                        new Song((String) bucket.getKey().get(ARTIST), (String) bucket.getKey().get(TITLE)),
+                        bucket.getAggregations().<ParsedMin>get(FIRST_ENTRY).value())));
+                afterKey = result.getBuckets().isEmpty() ? null : result.afterKey();
+            } while (afterKey != null);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        releases.sort(Comparator.comparingDouble(Release::firstEntry));
+        return releases.stream().map(Release::song).toList();
+    }
+
+    private record Release(Song song, double firstEntry) {
     }
 
     private Song makeSong(Map<String, Object> properties) {
@@ -203,68 +430,120 @@ public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializ
         return new Song(artist, title);
     }
 
-    private int getReleasesCount(short year, int roundFactor) {
-        var searchRequest = makeSearchRequestReleasesByYear(year, RETURN_NO_DOCUMENTS);
-        try {
-            var searchResponse = elasticsearchClient.search(searchRequest, RequestOptions.DEFAULT);
-            var elasticSearchResultCount = searchResponse.getHits().getTotalHits().value;  //TODO:reinterpret -> could be more than...
-            if (elasticSearchResultCount == 0L) {
-                return 0;
-            }
-            elasticSearchResultCount = (elasticSearchResultCount / roundFactor + 1) * roundFactor;
-            if (elasticSearchResultCount > Integer.MAX_VALUE) {
-                throw new IllegalStateException("totalhits > Integer.MAX_VALUE is not supported");
-            }
-            return (int)elasticSearchResultCount;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-    }
-
-    private SearchRequest makeSearchRequestReleasesByYear(short year, int limitResults) {
-        var searchRequest = new SearchRequest(CHARTSITEM_INDEX_NAME);
-        var searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.size(limitResults);
-        searchSourceBuilder.storedFields(Arrays.asList(ARTIST, TITLE));
-        searchSourceBuilder.fetchSource(true);
+    private SearchSourceBuilder makeSearchRequestReleasesByYear(short year, Set<MusicChart> charts) {
+        var searchSourceBuilder = new SearchSourceBuilder().size(0).fetchSource(false);
         var filterQuery = QueryBuilders.boolQuery()
                 .filter(QueryBuilders.termQuery(IS_NEW_IN_CHART, true))
-                .filter(QueryBuilders.rangeQuery(YEAR)
-                        .gte(year)
-                        .lte(year)
-                );
+                .filter(QueryBuilders.termQuery(YEAR, year))
+                .filter(QueryBuilders.termsQuery(CHARTNAME, charts.stream().map(MusicChart::chartName).toList()));
         searchSourceBuilder.query(filterQuery);
-        searchRequest.source(searchSourceBuilder);
-        return searchRequest;
+        return searchSourceBuilder;
+    }
+
+    @Override
+    public Stream<ChartsItem> streamChartsItems() {
+        var searchSourceBuilder = new SearchSourceBuilder()
+                .sort(CHARTNAME).sort(YEAR).sort(WEEK).sort(POSITION);
+        return streamHits(searchSourceBuilder, searchHit -> {
+            var properties = searchHit.getSourceAsMap();
+            return new ChartsItem((String) properties.get(CHARTNAME), ((Number) properties.get(YEAR)).shortValue(),
+                    ((Number) properties.get(WEEK)).byteValue(), ((Number) properties.get(POSITION)).byteValue(),
+                    (Boolean) properties.get(IS_NEW_IN_CHART), makeSong(properties));
+        });
+    }
+
+    /**
+     * Hand out the hits of a sorted search page by page: the next page is requested with the sort values of the last
+     * hit of the previous page, only when the caller has consumed the previous page. The memory use is bounded by the
+     * page size, and the number of hits is not limited by the max_result_window of the index. The sort must be unique
+     * per document, since this client predates point-in-time searches and pages are read from the live index.
+     */
+    private <T> Stream<T> streamHits(SearchSourceBuilder searchSourceBuilder, Function<SearchHit, T> mapper) {
+        searchSourceBuilder.size(HITS_PER_PAGE);
+        var hits = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private final Deque<SearchHit> page = new ArrayDeque<>();
+            private boolean lastPage;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (page.isEmpty() && !lastPage) {
+                    fetchNextPage();
+                }
+                var searchHit = page.poll();
+                if (searchHit == null) {
+                    return false;
+                }
+                action.accept(mapper.apply(searchHit));
+                return true;
+            }
+
+            private void fetchNextPage() {
+                try {
+                    var searchHits = elasticsearchClient.search(new SearchRequest(CHARTSITEM_INDEX_NAME).source(searchSourceBuilder),
+                            RequestOptions.DEFAULT).getHits().getHits();
+                    Collections.addAll(page, searchHits);
+                    lastPage = searchHits.length < HITS_PER_PAGE;
+                    if (!lastPage) {
+                        searchSourceBuilder.searchAfter(searchHits[searchHits.length - 1].getSortValues());
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(hits, false);
     }
 
     @Override
     public short getHighestYearStored(MusicChart chart) {
-        var searchRequest = new SearchRequest(CHARTSITEM_INDEX_NAME);
-        var searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.storedFields(Arrays.asList(CHARTNAME, YEAR));
-        searchSourceBuilder.size(0);
-        searchSourceBuilder.fetchSource(false);
-        var filterQuery = QueryBuilders.boolQuery()
-                .filter(QueryBuilders.termQuery(CHARTNAME, chart.chartName()));
-        searchSourceBuilder.query(filterQuery);
+        var watermark = getWatermarks().get(chart);
+        return watermark == null ? -1 : watermark.year();
+    }
 
-        searchSourceBuilder.aggregation(AggregationBuilders.max("maxYear").field(YEAR));
-        searchRequest.source(searchSourceBuilder);
+    /**
+     * Get the watermarks of all charts with a single request: per chart, the buckets of the years are sorted latest
+     * first, and the maximum week is taken of the first one only
+     */
+    @Override
+    public Map<MusicChart, Watermark> getWatermarks() {
+        return watermarks.get(() -> {
+            var latestYear = AggregationBuilders.terms("latestYear").field(YEAR).order(BucketOrder.key(false)).size(1)
+                    .subAggregation(AggregationBuilders.max("maxWeek").field(WEEK));
+            var charts = AggregationBuilders.terms("charts").field(CHARTNAME).size(MusicChart.values().length)
+                    .subAggregation(latestYear);
+            var searchSourceBuilder = new SearchSourceBuilder().size(0).fetchSource(false).aggregation(charts);
+            try {
+                var searchResponse = elasticsearchClient.search(new SearchRequest(CHARTSITEM_INDEX_NAME).source(searchSourceBuilder),
+                        RequestOptions.DEFAULT);
+                Map<MusicChart, Watermark> stored = new EnumMap<>(MusicChart.class);
+                for (Terms.Bucket chartBucket : searchResponse.getAggregations().<Terms>get("charts").getBuckets()) {
+                    var chart = MusicChart.fromChartName(chartBucket.getKeyAsString());
+                    var yearBuckets = chartBucket.getAggregations().<Terms>get("latestYear").getBuckets();
+                    if (chart.isPresent() && !yearBuckets.isEmpty()) {
+                        var yearBucket = yearBuckets.get(0);
+                        var maxWeek = yearBucket.getAggregations().<ParsedMax>get("maxWeek");
+                        stored.put(chart.get(), new Watermark(yearBucket.getKeyAsNumber().shortValue(), (byte) maxWeek.value()));
+                    }
+                }
+                return stored;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
 
-        try {
-            var searchResponse = elasticsearchClient.search(searchRequest, RequestOptions.DEFAULT);
-            var result = searchResponse.getAggregations().<ParsedMax>get("maxYear");
-            return (short)(Double.isInfinite(result.value())? -1: result.value());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    @Override
+    public void invalidateWatermarks() {
+        watermarks.invalidate();
     }
 
     @Override
     public byte getHighestWeekStored(MusicChart chart, short year) {
-        var searchRequest = new SearchRequest(CHARTSITEM_INDEX_NAME);
+        var watermark = getWatermarks().get(chart);
+        if (watermark != null && watermark.year() == year) {
+            return watermark.weekNumber();
+        }
+        var searchRequest = partitions.searchYear(year);
         var searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.storedFields(Arrays.asList(CHARTNAME, YEAR, WEEK));
         searchSourceBuilder.size(0);
@@ -282,10 +561,70 @@ public class ElasticBulkWritingChartsItemDao implements ChartsItemDao, Initializ
 
         try {
             var searchResponse = elasticsearchClient.search(searchRequest, RequestOptions.DEFAULT);
+            if (searchResponse.getAggregations() == null) {
+                return -1;
+            }
             var result = searchResponse.getAggregations().<ParsedMax>get("maxWeek");
             return (byte)(Double.isInfinite(result.value())? -1:result.value());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Collect the editions with a composite aggregation over chart, year and week. A composite aggregation returns its
+     * buckets in pages, so a few requests are needed for the complete history.
+     */
+    @Override
+    public EditionCoverage getEditionCoverage() {
+        var coverage = new EditionCoverage();
+        List<CompositeValuesSourceBuilder<?>> sources = List.of(
+                new TermsValuesSourceBuilder(CHARTNAME).field(CHARTNAME),
+                new TermsValuesSourceBuilder(YEAR).field(YEAR),
+                new TermsValuesSourceBuilder(WEEK).field(WEEK));
+        Map<String, Object> afterKey = null;
+        try {
+            do {
+                var editions = new CompositeAggregationBuilder("editions", sources).size(EDITIONS_PER_PAGE);
+                if (afterKey != null) {
+                    editions.aggregateAfter(afterKey);
+                }
+                var searchSourceBuilder = new SearchSourceBuilder().size(0).fetchSource(false).aggregation(editions);
+                var searchResponse = elasticsearchClient.search(new SearchRequest(CHARTSITEM_INDEX_NAME).source(searchSourceBuilder),
+                        RequestOptions.DEFAULT);
+                var result = searchResponse.getAggregations().<ParsedComposite>get("editions");
+                result.getBuckets().forEach(bucket -> {
+                    var key = bucket.getKey();
+                    MusicChart.fromChartName((String) key.get(CHARTNAME)).ifPresent(chart -> coverage.add(chart,
+                            ((Number) key.get(YEAR)).shortValue(), ((Number) key.get(WEEK)).byteValue()));
+                });
+                afterKey = result.getBuckets().isEmpty() ? null : result.afterKey();
+            } while (afterKey != null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return coverage;
+    }
+
+    @Override
+    public EditionCoverage getEditionCoverage(MusicChart chart, short year) {
+        var coverage = new EditionCoverage();
+        var filterQuery = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery(CHARTNAME, chart.chartName()))
+                .filter(QueryBuilders.termQuery(YEAR, year));
+        var searchSourceBuilder = new SearchSourceBuilder().size(0).fetchSource(false).query(filterQuery)
+                .aggregation(AggregationBuilders.terms("weeks").field(WEEK).size(MAX_WEEKS_PER_YEAR));
+        try {
+            var searchResponse = elasticsearchClient.search(partitions.searchYear(year).source(searchSourceBuilder),
+                    RequestOptions.DEFAULT);
+            if (searchResponse.getAggregations() == null) {
+                return coverage;
+            }
+            searchResponse.getAggregations().<Terms>get("weeks").getBuckets()
+                    .forEach(bucket -> coverage.add(chart, year, bucket.getKeyAsNumber().byteValue()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return coverage;
+    }
 }
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.EditionCoverage;
+import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.domain.Watermark;
+import info.rsdev.playlists.services.MusicChart;
+
+/**
+ * Keeps all chart items in memory, for serving the read-heavy requests without a round trip to the data store. The
+ * chart items are stored in columns of primitives, one array per property, and refer to their song by its index in an
+ * in-memory song dictionary, so that a chart item takes about ten bytes of heap.
+ * <p>
+ * Every year has an index of the rows of its new releases and, per chart, a bitmap of the weeks that are present.
+ * The releases are answered from those indices, and the chart items are streamed from the columns. The watermarks and
+ * the edition coverage, which the ingest is planned with, are answered by the backing data store, so that the editions
+ * that other instances stored are not scraped again. The chart items are loaded from the backing data store on first
+ * use; inserts are written through to the backing data store first, and added to the
+ * columns when that succeeded. A chart item is identified by its chart, year, week and position, like in the data
+ * store: a chart item that is inserted again replaces the one in memory, so use a backing data store that replaces
+ * stored chart items as well, or that refuses them.
+ * <p>
+ * The releases that are served from memory do not include the chart items that other instances write to the backing
+ * data store, until the chart items are loaded again with {@link #reloadWhenOutdated()}.
+ * <p>
+ * When a snapshot file is configured, the chart items are loaded from the {@link ChartsSnapshot} instead, which takes
+ * a few milliseconds. The snapshot is only used when it has the same editions as the backing data store, or when the
+ * backing data store cannot be reached; the snapshot is rewritten with {@link #writeSnapshot()}. Comparing the
+ * editions, rather than the latest edition per chart, makes sure that editions that were added before the latest one,
+ * e.g. to fill a hole, are not missed.
+ * <p>
+ * Select it with the {@code InMemory} profile; it wraps the {@link ChartsItemDao} of the other active profiles.
+ */
+@Component
+@Primary
+@Profile("InMemory")
+public class InMemoryChartsItemDao implements ChartsItemDao, Initializable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryChartsItemDao.class);
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final ChartsItemDao backingStore;
+
+    private final Path snapshotFile;
+
+    /* the version of the columns that the snapshot file contains, as far as this instance knows */
+    private volatile long snapshotVersion = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean loaded;
+
+    /* counts the inserts, so that a snapshot is written again when rows were replaced as well as when rows were added */
+    private long version;
+
+    /* set when the columns are handed out, which must not see rows being replaced */
+    private volatile boolean columnsShared;
+
+    private byte[] chartIds = new byte[INITIAL_CAPACITY];
+    private short[] years = new short[INITIAL_CAPACITY];
+    private byte[] weekNumbers = new byte[INITIAL_CAPACITY];
+    private byte[] positions = new byte[INITIAL_CAPACITY];
+    private boolean[] newReleases = new boolean[INITIAL_CAPACITY];
+    private int[] songRefs = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private List<Song> songs = new ArrayList<>();
+    private Map<Song, Integer> songIndex = new HashMap<>();
+
+    private TreeMap<Short, YearIndex> yearIndices = new TreeMap<>();
+
+    /* serializes the writes to the backing store with reloading from it, so that a reload does not lose an insert */
+    private final Object writeMutex = new Object();
+
+    /**
+     * The rows of the new releases of a single year, and the weeks of that year that are present per chart
+     */
+    private static class YearIndex {
+        /* bit n is set when week n is present; week numbers range from 1 to 53 */
+        private final long[] weeksPerChart = new long[MusicChart.values().length];
+        private int[] releaseRows = new int[64];
+        private int releaseCount;
+
+        private void addRelease(int row) {
+            if (releaseCount == releaseRows.length) {
+                releaseRows = Arrays.copyOf(releaseRows, releaseCount * 2);
+            }
+            releaseRows[releaseCount++] = row;
+        }
+
+        private void removeRelease(int row) {
+            for (int i = 0; i < releaseCount; i++) {
+                if (releaseRows[i] == row) {
+                    releaseRows[i] = releaseRows[--releaseCount];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param backingStore the data store that the chart items are read from and written through to; Spring does not
+     *                     inject this bean into itself, but the {@link ChartsItemDao} of the other active profiles
+     * @param snapshotFile the location of the snapshot file; leave empty to always load from the backing store
+     */
+    public InMemoryChartsItemDao(ChartsItemDao backingStore,
+            @Value("${playlists.snapshot.file:}") String snapshotFile) {
+        this.backingStore = backingStore;
+        this.snapshotFile = snapshotFile.isBlank() ? null : Path.of(snapshotFile);
+    }
+
+    @Override
+    public boolean setupStoreWhenNeeded() {
+        return backingStore instanceof Initializable init && init.setupStoreWhenNeeded();
+    }
+
+    @Override
+    public void compactStore() {
+        if (backingStore instanceof Initializable init) {
+            init.compactStore();
+        }
+    }
+
+    @Override
+    public void insert(ChartsItem chartsItem) {
+        insert(List.of(chartsItem));
+    }
+
+    @Override
+    public void insert(List<ChartsItem> chartsItems) {
+        ensureLoaded();
+        synchronized (writeMutex) {
+            backingStore.insert(chartsItems);
+            lock.writeLock().lock();
+            try {
+                var storedRows = rowsOfStoredEditions(chartsItems);
+                for (ChartsItem chartsItem : chartsItems) {
+                    var key = entryKey(chartsItem);
+                    var row = storedRows.get(key);
+                    if (row == null) {
+                        storedRows.put(key, append(chartsItem));
+                    } else {
+                        replace(row, chartsItem);
+                    }
+                }
+                version++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Find the rows of the editions of the given chart items that are present already. Usually, the editions are new
+     * and the rows are not scanned. Must be called with the write lock held.
+     *
+     * @return the rows by {@link #entryKey(byte, short, byte, byte)}
+     */
+    private Map<Long, Integer> rowsOfStoredEditions(List<ChartsItem> chartsItems) {
+        Set<Long> storedEditions = new HashSet<>();
+        for (ChartsItem chartsItem : chartsItems) {
+            var chart = chartOf(chartsItem);
+            var yearIndex = yearIndices.get(chartsItem.year());
+            if (yearIndex != null && (yearIndex.weeksPerChart[chart.ordinal()] & 1L << chartsItem.weekNumber()) != 0L) {
+                storedEditions.add(entryKey(chart.id(), chartsItem.year(), chartsItem.weekNumber(), (byte) 0) >>> 8);
+            }
+        }
+        Map<Long, Integer> rows = new HashMap<>();
+        if (!storedEditions.isEmpty()) {
+            for (int row = 0; row < size; row++) {
+                var key = entryKey(chartIds[row], years[row], weekNumbers[row], positions[row]);
+                if (storedEditions.contains(key >>> 8)) {
+                    rows.put(key, row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static long entryKey(ChartsItem chartsItem) {
+        return entryKey(chartOf(chartsItem).id(), chartsItem.year(), chartsItem.weekNumber(), chartsItem.position());
+    }
+
+    /* the lowest byte holds the position, so the key without it identifies the edition */
+    private static long entryKey(byte chartId, short year, byte weekNumber, byte position) {
+        return (long) chartId << 32 | (year & 0xffffL) << 16 | (weekNumber & 0xff) << 8 | position & 0xff;
+    }
+
+    private static MusicChart chartOf(ChartsItem chartsItem) {
+        return MusicChart.fromChartName(chartsItem.chartName())
+                .orElseThrow(() -> new IllegalArgumentException("Unknown chart: " + chartsItem.chartName()));
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                long start = System.currentTimeMillis();
+                var source = snapshotFile;
+                if (!loadSnapshot()) {
+                    source = null;
+                    try (var chartsItems = backingStore.streamChartsItems()) {
+                        chartsItems.forEach(this::append);
+                    }
+                }
+                loaded = true;
+                LOGGER.info("Loaded {} chart items with {} songs in memory from {} in {}ms.", size, songs.size(),
+                        source == null ? "the data store" : source, System.currentTimeMillis() - start);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called with the write lock held
+     *
+     * @return true when the columns were loaded from an up to date snapshot, false when they are still empty
+     */
+    private boolean loadSnapshot() {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) {
+            return false;
+        }
+        try {
+            adopt(ChartsSnapshot.read(snapshotFile));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Ignoring the snapshot: {}", e.getMessage());
+            clear();
+            return false;
+        }
+        try {
+            var stored = backingStore.getEditionCoverage();
+            var snapshot = editionCoverage();
+            if (!stored.equals(snapshot)) {
+                LOGGER.info("Snapshot {} is outdated: it contains {} editions, the data store contains {}",
+                        snapshotFile, editionCounts(snapshot), editionCounts(stored));
+                clear();
+                return false;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Serving snapshot {}, because it cannot be compared with the data store: {}", snapshotFile,
+                    e.getMessage());
+        }
+        snapshotVersion = version;
+        return true;
+    }
+
+    /**
+     * Load the chart items from the backing data store again when it contains other editions than the memory, e.g.
+     * because another instance ingested them. The columns are built aside and swapped in, so the releases are served
+     * from the previous columns in the meantime.
+     *
+     * @return true when the chart items were reloaded
+     */
+    public boolean reloadWhenOutdated() {
+        ensureLoaded();
+        synchronized (writeMutex) {
+            var stored = backingStore.getEditionCoverage();
+            EditionCoverage inMemory;
+            lock.readLock().lock();
+            try {
+                inMemory = editionCoverage();
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (stored.equals(inMemory)) {
+                return false;
+            }
+            LOGGER.info("Reloading the chart items: the memory contains {} editions, the data store contains {}",
+                    editionCounts(inMemory), editionCounts(stored));
+            var reloaded = new InMemoryChartsItemDao(backingStore, "");
+            reloaded.ensureLoaded();
+            lock.writeLock().lock();
+            try {
+                chartIds = reloaded.chartIds;
+                years = reloaded.years;
+                weekNumbers = reloaded.weekNumbers;
+                positions = reloaded.positions;
+                newReleases = reloaded.newReleases;
+                songRefs = reloaded.songRefs;
+                size = reloaded.size;
+                songs = reloaded.songs;
+                songIndex = reloaded.songIndex;
+                yearIndices = reloaded.yearIndices;
+                columnsShared = false;
+                version++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Write the chart items in memory to the snapshot file, unless the snapshot is up to date already
+     *
+     * @return true when the snapshot file was written
+     */
+    public synchronized boolean writeSnapshot() throws IOException {
+        if (snapshotFile == null) {
+            return false;
+        }
+        ensureLoaded();
+        ChartsSnapshot.Columns columns;
+        long columnsVersion;
+        lock.readLock().lock();
+        try {
+            if (version == snapshotVersion) {
+                return false;
+            }
+            columns = columns();
+            columnsVersion = version;
+        } finally {
+            lock.readLock().unlock();
+        }
+        ChartsSnapshot.write(snapshotFile, columns);
+        snapshotVersion = columnsVersion;
+        return true;
+    }
+
+    /**
+     * Rows are appended to the columns, and the columns are copied before rows are replaced, so they can be handed out
+     * without copying; must be called with a lock held
+     */
+    private ChartsSnapshot.Columns columns() {
+        columnsShared = true;
+        return new ChartsSnapshot.Columns(size, chartIds, years, weekNumbers, positions, newReleases, songRefs,
+                songs.toArray(new Song[0]));
+    }
+
+    /* Must be called with the write lock held */
+    private void adopt(ChartsSnapshot.Columns columns) {
+        chartIds = columns.chartIds();
+        years = columns.years();
+        weekNumbers = columns.weekNumbers();
+        positions = columns.positions();
+        newReleases = columns.newReleases();
+        songRefs = columns.songRefs();
+        size = columns.rows();
+        for (Song song : columns.songs()) {
+            songIndex.put(song, songs.size());
+            songs.add(song);
+        }
+        for (int row = 0; row < size; row++) {
+            index(row);
+        }
+    }
+
+    /* Must be called with the write lock held */
+    private void clear() {
+        chartIds = new byte[INITIAL_CAPACITY];
+        years = new short[INITIAL_CAPACITY];
+        weekNumbers = new byte[INITIAL_CAPACITY];
+        positions = new byte[INITIAL_CAPACITY];
+        newReleases = new boolean[INITIAL_CAPACITY];
+        songRefs = new int[INITIAL_CAPACITY];
+        size = 0;
+        songs.clear();
+        songIndex.clear();
+        yearIndices.clear();
+    }
+
+    /**
+     * Must be called with the write lock held
+     *
+     * @return the row of the chart item
+     */
+    private int append(ChartsItem chartsItem) {
+        var chart = chartOf(chartsItem);
+        if (size == years.length) {
+            grow();
+        }
+        var songRef = songRef(chartsItem.song());
+        int row = size++;
+        chartIds[row] = chart.id();
+        years[row] = chartsItem.year();
+        weekNumbers[row] = chartsItem.weekNumber();
+        positions[row] = chartsItem.position();
+        newReleases[row] = chartsItem.isNewRelease();
+        songRefs[row] = songRef;
+        index(row);
+        return row;
+    }
+
+    /* Must be called with the write lock held; the chart item is of the same edition and position as the row */
+    private void replace(int row, ChartsItem chartsItem) {
+        var songRef = songRef(chartsItem.song());
+        if (songRefs[row] == songRef && newReleases[row] == chartsItem.isNewRelease()) {
+            return;
+        }
+        if (columnsShared) {
+            // the rows that were handed out must stay as they were
+            newReleases = newReleases.clone();
+            songRefs = songRefs.clone();
+            columnsShared = false;
+        }
+        var yearIndex = yearIndices.get(years[row]);
+        if (newReleases[row]) {
+            yearIndex.removeRelease(row);
+        }
+        newReleases[row] = chartsItem.isNewRelease();
+        songRefs[row] = songRef;
+        if (newReleases[row]) {
+            yearIndex.addRelease(row);
+        }
+    }
+
+    /* Must be called with the write lock held */
+    private int songRef(Song song) {
+        return songIndex.computeIfAbsent(song, newSong -> {
+            songs.add(newSong);
+            return songs.size() - 1;
+        });
+    }
+
+    /* Must be called with the write lock held */
+    private void index(int row) {
+        var chart = MusicChart.fromId(chartIds[row])
+                .orElseThrow(() -> new IllegalStateException("Unknown chart id: " + chartIds[row]));
+        var yearIndex = yearIndices.computeIfAbsent(years[row], year -> new YearIndex());
+        yearIndex.weeksPerChart[chart.ordinal()] |= 1L << weekNumbers[row];
+        if (newReleases[row]) {
+            yearIndex.addRelease(row);
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, years.length * 2);
+        chartIds = Arrays.copyOf(chartIds, capacity);
+        years = Arrays.copyOf(years, capacity);
+        weekNumbers = Arrays.copyOf(weekNumbers, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        newReleases = Arrays.copyOf(newReleases, capacity);
+        songRefs = Arrays.copyOf(songRefs, capacity);
+    }
+
+    /**
+     * The release rows of the year are sorted on week and position, packed together with the song in a single long,
+     * and the first occurrence of every song is kept
+     */
+    @Override
+    public Collection<Song> getReleases(short year, Set<MusicChart> charts) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            var yearIndex = yearIndices.get(year);
+            if (yearIndex == null || charts.isEmpty()) {
+                return List.of();
+            }
+            var wantedCharts = new BitSet();
+            charts.forEach(chart -> wantedCharts.set(chart.id()));
+            var releases = new long[yearIndex.releaseCount];
+            int count = 0;
+            for (int i = 0; i < yearIndex.releaseCount; i++) {
+                int row = yearIndex.releaseRows[i];
+                if (wantedCharts.get(chartIds[row])) {
+                    releases[count++] = (long) weekNumbers[row] << 40 | (long) (positions[row] & 0xff) << 32 | songRefs[row];
+                }
+            }
+            Arrays.sort(releases, 0, count);
+            var seen = new BitSet(songs.size());
+            List<Song> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int songRef = (int) releases[i];
+                if (!seen.get(songRef)) {
+                    seen.set(songRef);
+                    result.add(songs.get(songRef));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The rows that are present when the stream is created are read without holding the lock, see {@link #columns()}
+     */
+    @Override
+    public Stream<ChartsItem> streamChartsItems() {
+        ensureLoaded();
+        ChartsSnapshot.Columns columns;
+        lock.readLock().lock();
+        try {
+            columns = columns();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return IntStream.range(0, columns.rows()).mapToObj(row -> new ChartsItem(
+                MusicChart.fromId(columns.chartIds()[row]).orElseThrow().chartName(), columns.years()[row],
+                columns.weekNumbers()[row], columns.positions()[row], columns.newReleases()[row],
+                columns.songs()[columns.songRefs()[row]]));
+    }
+
+    /*
+     * The ingest is planned with the answers of the backing data store, which include the chart items that other
+     * instances have stored since the chart items were loaded in memory
+     */
+
+    @Override
+    public short getHighestYearStored(MusicChart chart) {
+        return backingStore.getHighestYearStored(chart);
+    }
+
+    @Override
+    public byte getHighestWeekStored(MusicChart chart, short year) {
+        return backingStore.getHighestWeekStored(chart, year);
+    }
+
+    @Override
+    public Map<MusicChart, Watermark> getWatermarks() {
+        return backingStore.getWatermarks();
+    }
+
+    @Override
+    public void invalidateWatermarks() {
+        backingStore.invalidateWatermarks();
+    }
+
+    @Override
+    public EditionCoverage getEditionCoverage() {
+        return backingStore.getEditionCoverage();
+    }
+
+    @Override
+    public EditionCoverage getEditionCoverage(MusicChart chart, short year) {
+        return backingStore.getEditionCoverage(chart, year);
+    }
+
+    /* Must be called with a lock held */
+    private EditionCoverage editionCoverage() {
+        var coverage = new EditionCoverage();
+        yearIndices.forEach((year, yearIndex) -> {
+            for (MusicChart chart : MusicChart.values()) {
+                addWeeks(coverage, chart, year, yearIndex.weeksPerChart[chart.ordinal()]);
+            }
+        });
+        return coverage;
+    }
+
+    private static Map<MusicChart, Integer> editionCounts(EditionCoverage coverage) {
+        Map<MusicChart, Integer> counts = new EnumMap<>(MusicChart.class);
+        for (MusicChart chart : MusicChart.values()) {
+            counts.put(chart, coverage.size(chart));
+        }
+        return counts;
+    }
+
+    private static void addWeeks(EditionCoverage coverage, MusicChart chart, short year, long weeks) {
+        for (long remaining = weeks; remaining != 0L; remaining &= remaining - 1) {
+            coverage.add(chart, year, (byte) Long.numberOfTrailingZeros(remaining));
+        }
+    }
+}
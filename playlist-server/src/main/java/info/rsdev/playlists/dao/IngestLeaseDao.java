@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Leases coordinate the instances of this application that share a database, so that a job runs on only one of them
+ * at a time. A lease that is not renewed in time expires, so that a crashed instance does not block the others.
+ */
+public interface IngestLeaseDao {
+
+    /**
+     * The lease that is held by whoever writes chart data: the scheduled ingest, the replay or the seed loader
+     */
+    String INGEST_LEASE = "charts-ingest";
+
+    /**
+     * Take the named lease, when no other owner holds it
+     *
+     * @return true when the lease is ours for the given duration
+     */
+    boolean acquire(String leaseName, String owner, Duration duration);
+
+    /**
+     * Extend the named lease
+     *
+     * @return false when the lease was lost to another owner
+     */
+    boolean renew(String leaseName, String owner, Duration duration);
+
+    void release(String leaseName, String owner);
+
+    /**
+     * @return true when any owner holds the named lease
+     */
+    boolean isHeld(String leaseName);
+
+    /**
+     * Keep a record of an ingest run
+     *
+     * @param outcome a short code for how the run ended
+     * @param message details about the outcome, e.g. the reason of failure; may be null
+     */
+    void recordRun(String owner, Instant startedAt, Duration duration, String outcome, String message);
+}
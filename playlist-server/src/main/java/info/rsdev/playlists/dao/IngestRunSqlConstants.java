@@ -0,0 +1,85 @@
+package info.rsdev.playlists.dao;
+
+public final class IngestRunSqlConstants {
+
+    private IngestRunSqlConstants() {
+        // do not instantiate this bag of constants
+    }
+
+    public static final String LEASE_TABLE = "ingest_lease";
+    public static final String RUNS_TABLE = "ingest_runs";
+    public static final String WORK_TABLE = "ingest_work";
+    public static final String ABSENT_EDITIONS_TABLE = "absent_editions";
+
+    public static final String NAME_COLUMN = "name";
+    public static final String OWNER_COLUMN = "owner";
+    public static final String EXPIRES_AT_COLUMN = "expires_at";
+    public static final String STARTED_AT_COLUMN = "started_at";
+    public static final String DURATION_COLUMN = "duration_ms";
+    public static final String OUTCOME_COLUMN = "outcome";
+    public static final String MESSAGE_COLUMN = "message";
+    public static final String CHART_NAME_COLUMN = "chart_id";
+    public static final String YEAR_COLUMN = "year";
+    public static final String DONE_AT_COLUMN = "done_at";
+    public static final String WEEK_NUMBER_COLUMN = "week_number";
+
+    public static final String CURRENT_TIME = "select now(3)";
+
+    /*
+     * The lease is taken when it has expired or is already ours. The database clock is used for all lease times, so
+     * that the clocks of the instances do not need to be in sync.
+     */
+    public static final String ACQUIRE_LEASE = String.format(
+            "update %s set %s = ?, %s = timestampadd(SECOND, ?, now(3)) where %s = ? and (%s < now(3) or %s = ?)",
+            LEASE_TABLE, OWNER_COLUMN, EXPIRES_AT_COLUMN, NAME_COLUMN, EXPIRES_AT_COLUMN, OWNER_COLUMN);
+
+    public static final String RENEW_LEASE = String.format(
+            "update %s set %s = timestampadd(SECOND, ?, now(3)) where %s = ? and %s = ?",
+            LEASE_TABLE, EXPIRES_AT_COLUMN, NAME_COLUMN, OWNER_COLUMN);
+
+    public static final String RELEASE_LEASE = String.format(
+            "update %s set %s = null, %s = timestampadd(SECOND, -1, now(3)) where %s = ? and %s = ?",
+            LEASE_TABLE, OWNER_COLUMN, EXPIRES_AT_COLUMN, NAME_COLUMN, OWNER_COLUMN);
+
+    public static final String IS_LEASE_HELD = String.format("select count(*) from %s where %s = ? and %s >= now(3)",
+            LEASE_TABLE, NAME_COLUMN, EXPIRES_AT_COLUMN);
+
+    public static final String INSERT_RUN = String.format("insert into %s (%s, %s, %s, %s, %s) values (?, ?, ?, ?, ?)",
+            RUNS_TABLE, OWNER_COLUMN, STARTED_AT_COLUMN, DURATION_COLUMN, OUTCOME_COLUMN, MESSAGE_COLUMN);
+
+    /* A new unit of work starts out expired, so that it can be claimed straight away */
+    public static final String ADD_WORK = String.format(
+            "insert ignore into %s (%s, %s, %s) values (?, ?, timestampadd(SECOND, -1, now(3)))",
+            WORK_TABLE, CHART_NAME_COLUMN, YEAR_COLUMN, EXPIRES_AT_COLUMN);
+
+    /* Work that was done by another instance after the given time is not claimed again */
+    public static final String CLAIM_WORK = String.format(
+            "update %s set %s = ?, %s = timestampadd(SECOND, ?, now(3)) where %s = ? and %s = ? "
+                    + "and (%s < now(3) or %s = ?) and (%s is null or %s < ?)",
+            WORK_TABLE, OWNER_COLUMN, EXPIRES_AT_COLUMN, CHART_NAME_COLUMN, YEAR_COLUMN, EXPIRES_AT_COLUMN,
+            OWNER_COLUMN, DONE_AT_COLUMN, DONE_AT_COLUMN);
+
+    public static final String IS_WORK_DONE = String.format(
+            "select count(*) from %s where %s = ? and %s = ? and %s >= ?",
+            WORK_TABLE, CHART_NAME_COLUMN, YEAR_COLUMN, DONE_AT_COLUMN);
+
+    public static final String RENEW_WORK = String.format(
+            "update %s set %s = timestampadd(SECOND, ?, now(3)) where %s = ? and %s = ? and %s = ?",
+            WORK_TABLE, EXPIRES_AT_COLUMN, CHART_NAME_COLUMN, YEAR_COLUMN, OWNER_COLUMN);
+
+    public static final String COMPLETE_WORK = String.format(
+            "update %s set %s = null, %s = timestampadd(SECOND, -1, now(3)), %s = now(3) where %s = ? and %s = ? and %s = ?",
+            WORK_TABLE, OWNER_COLUMN, EXPIRES_AT_COLUMN, DONE_AT_COLUMN, CHART_NAME_COLUMN, YEAR_COLUMN, OWNER_COLUMN);
+
+    public static final String RELEASE_WORK = String.format(
+            "update %s set %s = null, %s = timestampadd(SECOND, -1, now(3)) where %s = ? and %s = ? and %s = ?",
+            WORK_TABLE, OWNER_COLUMN, EXPIRES_AT_COLUMN, CHART_NAME_COLUMN, YEAR_COLUMN, OWNER_COLUMN);
+
+    public static final String GET_ABSENT_EDITIONS = String.format("select %s, %s, %s from %s",
+            CHART_NAME_COLUMN, YEAR_COLUMN, WEEK_NUMBER_COLUMN, ABSENT_EDITIONS_TABLE);
+
+    public static final String ADD_ABSENT_EDITION = String.format(
+            "insert into %s (%s, %s, %s) values (?, ?, ?) on duplicate key update %s = %s",
+            ABSENT_EDITIONS_TABLE, CHART_NAME_COLUMN, YEAR_COLUMN, WEEK_NUMBER_COLUMN, WEEK_NUMBER_COLUMN,
+            WEEK_NUMBER_COLUMN);
+}
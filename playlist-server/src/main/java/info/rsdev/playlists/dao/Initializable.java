@@ -12,4 +12,11 @@ public interface Initializable {
      */
     boolean setupStoreWhenNeeded();
 
+    /**
+     * Reorganize the data store for reading, now that part of the data will not change anymore; only call this while
+     * no other instance writes {@link ChartsItem} instances, e.g. while holding the ingest lease
+     */
+    default void compactStore() {
+    }
+
 }
@@ -1,87 +1,373 @@
 package info.rsdev.playlists.dao;
 
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.ARTIST_COLUMN;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.CHART_ID_COLUMN;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.DELETE_RELEASES_TEMPLATE;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.DERIVE_RELEASES_TEMPLATE;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_CHART_ENTRIES;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_EDITIONS;
 import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_HIGHEST_WEEK;
-import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_HIGHEST_YEAR;
-import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_NEW_RELEASES_QUERY;
-import static info.rsdev.playlists.dao.ChartsItemSqlConstants.INSERT_CHART_ITEM;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_NEW_SONGS_OF_EDITION;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_NEW_RELEASES_QUERY_TEMPLATE;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_SONG_IDS_PREFIX;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_WATERMARKS;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.GET_WEEKS_OF_YEAR;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.CHART_ENTRY_ROW;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.INSERT_RELEASES;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.INSERT_SONGS;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.IS_NEW_IN_CHART;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.INTO_CHART_ENTRIES;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.KEEP_FIRST_RELEASE;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.POSITION_COLUMN;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.RELEASE_ROW;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.SKIP_DUPLICATE_SONG;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.SONG_ID_COLUMN;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.SONG_ROW;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.TITLE_COLUMN;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.WEEK_COLUMN;
+import static info.rsdev.playlists.dao.ChartsItemSqlConstants.YEAR_COLUMN;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import javax.sql.DataSource;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
-import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.EditionCoverage;
 import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.domain.Watermark;
+import info.rsdev.playlists.services.ChartEdition;
 import info.rsdev.playlists.services.MusicChart;
 
+/**
+ * Stores the chart items normalized: every song once in a dictionary, and the weekly chart entries as narrow rows
+ * that refer to the song by id. The ids of the songs in a batch of chart items are resolved in bulk, and are kept in
+ * memory, since the same songs come by week after week.
+ * <p>
+ * The first week in which a song entered a chart in a year is kept up to date in the releases table, in the same
+ * transaction that inserts the chart entries, so that the releases of a year can be read without scanning the entries.
+ * When stored chart entries may be kept or replaced, see {@link DuplicateChartEntries}, the releases of the songs
+ * involved are derived again from the chart entries.
+ * <p>
+ * All rows are written with multi-row insert statements of up to {@link #rowsPerInsert} rows, which is much faster
+ * than a batch of single row inserts, e.g. when a backfill or restore hands over thousands of chart items at once.
+ */
 @Component
 @Profile("!ElasticSearch")
 public class MySqlChartsItemDao implements ChartsItemDao {
 
     private static final SongMapper SONG_MAPPER = new SongMapper();
 
+    /* The number of songs that is looked up with a single query */
+    private static final int SONG_LOOKUP_SIZE = 500;
+
+    /* The server refuses statements with more parameters; a chart entry has the most parameters per row */
+    private static final int MAX_PARAMETERS = 65535;
+    private static final int CHART_ENTRY_PARAMETERS = 6;
+
+    /**
+     * Binds the values of a single row to the parameters of a multi-row statement
+     */
+    @FunctionalInterface
+    private interface RowBinder<T> {
+        /**
+         * @return the index of the first parameter of the next row
+         */
+        int bind(PreparedStatement ps, int parameterIndex, T row) throws SQLException;
+    }
+
     private final JdbcTemplate jdbcTemplate;
 
-    public MySqlChartsItemDao(DataSource datasource) {
+    /* Reads with a forward-only cursor, fetching a limited number of rows at a time */
+    private final JdbcTemplate streamingTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int rowsPerInsert;
+
+    private final DuplicateChartEntries onDuplicate;
+
+    private final Map<Song, Integer> songIds = new ConcurrentHashMap<>();
+
+    private final WatermarkCache watermarks = new WatermarkCache();
+
+    public MySqlChartsItemDao(DataSource datasource,
+            @Value("${playlists.mysql.rows-per-insert:1000}") int rowsPerInsert,
+            @Value("${playlists.mysql.on-duplicate:FAIL}") DuplicateChartEntries onDuplicate,
+            @Value("${playlists.mysql.fetch-size:200}") int fetchSize) {
+        if (rowsPerInsert < 1 || rowsPerInsert * CHART_ENTRY_PARAMETERS > MAX_PARAMETERS) {
+            throw new IllegalArgumentException(String.format("Rows per insert must be between 1 and %d, but was %d",
+                    MAX_PARAMETERS / CHART_ENTRY_PARAMETERS, rowsPerInsert));
+        }
+        this.rowsPerInsert = rowsPerInsert;
+        this.onDuplicate = onDuplicate;
         jdbcTemplate = new JdbcTemplate(datasource);
+        streamingTemplate = new JdbcTemplate(datasource);
+        streamingTemplate.setFetchSize(fetchSize);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(datasource));
     }
 
     @Override
     public void insert(ChartsItem entry) {
-        Song song = entry.song();
-        jdbcTemplate.update(INSERT_CHART_ITEM, entry.chartName(), entry.year(), entry.weekNumber(), entry.position(),
-                entry.isNewRelease(), song.artist(), song.title());
+        insert(List.of(entry));
     }
 
     @Override
     public void insert(List<ChartsItem> chartItems) {
-        this.jdbcTemplate.batchUpdate(INSERT_CHART_ITEM,
-                new BatchPreparedStatementSetter() {
-                    public void setValues(PreparedStatement ps, int i) throws SQLException {
-                        ChartsItem chartItem = chartItems.get(i);
-                        ps.setString(1, chartItem.chartName());
-                        ps.setShort(2, chartItem.year());
-                        ps.setByte(3, chartItem.weekNumber());
-                        ps.setShort(4, chartItem.position());
-                        ps.setBoolean(5, chartItem.isNewRelease());
-                        ps.setString(6, chartItem.song().artist());
-                        ps.setString(7, chartItem.song().title());
-                    }
-                    public int getBatchSize() {
-                        return chartItems.size();
-                    }
+        resolveSongIds(chartItems);
+        var newReleases = chartItems.stream().filter(ChartsItem::isNewRelease).toList();
+        transactionTemplate.executeWithoutResult(status -> {
+            if (onDuplicate == DuplicateChartEntries.FAIL) {
+                insertChartEntries(chartItems);
+                upsertReleases(newReleases);
+            } else {
+                // stored chart entries may be kept or replaced by other songs, so the releases of the songs of both
+                // are derived from the chart entries as they are after the insert
+                var songsPerYear = storedNewSongs(chartItems);
+                insertChartEntries(chartItems);
+                for (ChartsItem chartItem : newReleases) {
+                    songsPerYear.computeIfAbsent(new YearOfChart(chartItem.year(), chartOf(chartItem).id()),
+                            key -> new LinkedHashSet<>()).add(songIds.get(chartItem.song()));
+                }
+                songsPerYear.forEach(this::deriveReleases);
+            }
+        });
+        watermarks.advance(chartItems);
+    }
+
+    private void insertChartEntries(List<ChartsItem> chartItems) {
+        insertRows(onDuplicate.verb() + INTO_CHART_ENTRIES, CHART_ENTRY_ROW, onDuplicate.suffix(), chartItems,
+                (ps, index, chartItem) -> {
+                    ps.setByte(index++, chartOf(chartItem).id());
+                    ps.setShort(index++, chartItem.year());
+                    ps.setByte(index++, chartItem.weekNumber());
+                    ps.setShort(index++, chartItem.position());
+                    ps.setBoolean(index++, chartItem.isNewRelease());
+                    ps.setInt(index++, songIds.get(chartItem.song()));
+                    return index;
                 });
     }
 
+    private void upsertReleases(List<ChartsItem> newReleases) {
+        insertRows(INSERT_RELEASES, RELEASE_ROW, KEEP_FIRST_RELEASE, newReleases, (ps, index, chartItem) -> {
+            ps.setShort(index++, chartItem.year());
+            ps.setByte(index++, chartOf(chartItem).id());
+            ps.setInt(index++, songIds.get(chartItem.song()));
+            ps.setByte(index++, chartItem.weekNumber());
+            return index;
+        });
+    }
+
+    /**
+     * @return the songs that are stored as a newcomer in the editions of the chart items, per year of a chart
+     */
+    private Map<YearOfChart, Set<Integer>> storedNewSongs(List<ChartsItem> chartItems) {
+        Map<YearOfChart, Set<Integer>> songsPerYear = new HashMap<>();
+        chartItems.stream().map(chartItem -> new ChartEdition(chartOf(chartItem), chartItem.year(),
+                chartItem.weekNumber())).distinct().forEach(edition -> {
+                    var songs = songsPerYear.computeIfAbsent(new YearOfChart(edition.year(), edition.chart().id()),
+                            key -> new LinkedHashSet<>());
+                    songs.addAll(jdbcTemplate.queryForList(GET_NEW_SONGS_OF_EDITION, Integer.class,
+                            edition.chart().id(), edition.year(), edition.weekNumber()));
+                });
+        return songsPerYear;
+    }
+
+    private void deriveReleases(YearOfChart yearOfChart, Set<Integer> songs) {
+        List<Integer> songList = new ArrayList<>(songs);
+        for (int start = 0; start < songList.size(); start += SONG_LOOKUP_SIZE) {
+            var chunk = songList.subList(start, Math.min(songList.size(), start + SONG_LOOKUP_SIZE));
+            var placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            var parameters = new ArrayList<Object>();
+            parameters.add(yearOfChart.year());
+            parameters.add(yearOfChart.chartId());
+            parameters.addAll(chunk);
+            jdbcTemplate.update(String.format(DELETE_RELEASES_TEMPLATE, placeholders), parameters.toArray());
+            jdbcTemplate.update(String.format(DERIVE_RELEASES_TEMPLATE, placeholders), parameters.toArray());
+        }
+    }
+
+    private record YearOfChart(short year, byte chartId) {
+    }
+
+    /**
+     * Write the rows with as few multi-row statements as possible
+     *
+     * @param statementStart the statement up to and including the values keyword
+     * @param rowPlaceholder the placeholders for the values of a single row
+     * @param statementEnd   the part of the statement that follows the rows
+     */
+    private <T> void insertRows(String statementStart, String rowPlaceholder, String statementEnd, List<T> rows,
+            RowBinder<T> binder) {
+        for (int start = 0; start < rows.size(); start += rowsPerInsert) {
+            var chunk = rows.subList(start, Math.min(rows.size(), start + rowsPerInsert));
+            var statement = statementStart + String.join(", ", Collections.nCopies(chunk.size(), rowPlaceholder))
+                    + statementEnd;
+            jdbcTemplate.update(statement, ps -> {
+                int parameterIndex = 1;
+                for (T row : chunk) {
+                    parameterIndex = binder.bind(ps, parameterIndex, row);
+                }
+            });
+        }
+    }
+
+    /**
+     * Make sure that all songs of the chart items are in the dictionary, and that their ids are known
+     */
+    private void resolveSongIds(List<ChartsItem> chartItems) {
+        var unknownSongs = new LinkedHashSet<Song>();
+        for (ChartsItem chartItem : chartItems) {
+            if (!songIds.containsKey(chartItem.song())) {
+                unknownSongs.add(chartItem.song());
+            }
+        }
+        if (unknownSongs.isEmpty()) {
+            return;
+        }
+
+        List<Song> songs = new ArrayList<>(unknownSongs);
+        insertRows(INSERT_SONGS, SONG_ROW, SKIP_DUPLICATE_SONG, songs, (ps, index, song) -> {
+            ps.setString(index++, song.artist());
+            ps.setString(index++, song.title());
+            return index;
+        });
+        for (int start = 0; start < songs.size(); start += SONG_LOOKUP_SIZE) {
+            var lookup = songs.subList(start, Math.min(songs.size(), start + SONG_LOOKUP_SIZE));
+            var query = GET_SONG_IDS_PREFIX + String.join(", ", Collections.nCopies(lookup.size(), SONG_ROW)) + ")";
+            var parameters = new Object[lookup.size() * 2];
+            for (int i = 0; i < lookup.size(); i++) {
+                parameters[i * 2] = lookup.get(i).artist();
+                parameters[i * 2 + 1] = lookup.get(i).title();
+            }
+            jdbcTemplate.query(query, (RowCallbackHandler) rs -> songIds.put(
+                    new Song(rs.getString(ARTIST_COLUMN), rs.getString(TITLE_COLUMN)), rs.getInt(SONG_ID_COLUMN)),
+                    parameters);
+        }
+        for (Song song : songs) {
+            if (!songIds.containsKey(song)) {
+                throw new IllegalStateException("No id found in the songs dictionary for " + song);
+            }
+        }
+    }
+
+    private static MusicChart chartOf(ChartsItem chartItem) {
+        return MusicChart.fromChartName(chartItem.chartName())
+                .orElseThrow(() -> new IllegalArgumentException("Unknown chart: " + chartItem.chartName()));
+    }
+
     @Override
-    public Collection<Song> getReleases(short year) {
-        return jdbcTemplate.query(GET_NEW_RELEASES_QUERY, new Object[] { Short.valueOf(year) }, new int[] { Types.SMALLINT }, SONG_MAPPER);
+    public Collection<Song> getReleases(short year, Set<MusicChart> charts) {
+        if (charts.isEmpty()) {
+            return List.of();
+        }
+        return jdbcTemplate.query(releasesQuery(charts), SONG_MAPPER, releasesParameters(year, charts));
     }
 
     @Override
-    public short getHighestYearStored(MusicChart chart) {
-        Short highestYear = jdbcTemplate.queryForObject(GET_HIGHEST_YEAR, new Object[] {chart.chartName()}, new int[] {Types.VARCHAR}, Short.class);
-        if (highestYear != null) {
-            return highestYear;
+    public Stream<Song> streamReleases(short year, Set<MusicChart> charts) {
+        if (charts.isEmpty()) {
+            return Stream.empty();
         }
-        return -1;
+        return streamingTemplate.queryForStream(releasesQuery(charts), SONG_MAPPER, releasesParameters(year, charts));
+    }
+
+    private static String releasesQuery(Set<MusicChart> charts) {
+        return String.format(GET_NEW_RELEASES_QUERY_TEMPLATE, String.join(", ", Collections.nCopies(charts.size(), "?")));
+    }
+
+    private static Object[] releasesParameters(short year, Set<MusicChart> charts) {
+        var parameters = new ArrayList<Object>();
+        parameters.add(year);
+        charts.forEach(chart -> parameters.add(chart.id()));
+        return parameters.toArray();
+    }
+
+    @Override
+    public Stream<ChartsItem> streamChartsItems() {
+        return streamingTemplate.queryForStream(GET_CHART_ENTRIES, (rs, rowNum) -> {
+            var chart = MusicChart.fromId(rs.getByte(CHART_ID_COLUMN))
+                    .orElseThrow(() -> new IllegalStateException("Unknown chart id in the data store"));
+            return new ChartsItem(chart.chartName(), rs.getShort(YEAR_COLUMN), rs.getByte(WEEK_COLUMN),
+                    rs.getByte(POSITION_COLUMN), rs.getBoolean(IS_NEW_IN_CHART), SONG_MAPPER.mapRow(rs, rowNum));
+        });
+    }
+
+    @Override
+    public short getHighestYearStored(MusicChart chart) {
+        var watermark = getWatermarks().get(chart);
+        return watermark == null ? -1 : watermark.year();
     }
 
     @Override
     public byte getHighestWeekStored(MusicChart chart, short year) {
-        Byte highestWeek = jdbcTemplate.queryForObject(GET_HIGHEST_WEEK, new Object[] {chart.chartName(), year}, new int[] {Types.VARCHAR, Types.SMALLINT}, Byte.class);
+        var watermark = getWatermarks().get(chart);
+        if (watermark != null && watermark.year() == year) {
+            return watermark.weekNumber();
+        }
+        Byte highestWeek = jdbcTemplate.queryForObject(GET_HIGHEST_WEEK, new Object[] {chart.id(), year}, new int[] {Types.TINYINT, Types.SMALLINT}, Byte.class);
         if (highestWeek != null) {
             return highestWeek;
         }
         return -1;
     }
 
+    @Override
+    public Map<MusicChart, Watermark> getWatermarks() {
+        return watermarks.get(() -> {
+            Map<MusicChart, Watermark> stored = new EnumMap<>(MusicChart.class);
+            jdbcTemplate.query(GET_WATERMARKS, (RowCallbackHandler) rs -> {
+                var chart = MusicChart.fromId(rs.getByte(CHART_ID_COLUMN));
+                if (chart.isPresent()) {
+                    stored.put(chart.get(), new Watermark(rs.getShort(YEAR_COLUMN), rs.getByte(WEEK_COLUMN)));
+                }
+            });
+            return stored;
+        });
+    }
+
+    @Override
+    public void invalidateWatermarks() {
+        watermarks.invalidate();
+    }
+
+    @Override
+    public EditionCoverage getEditionCoverage() {
+        var coverage = new EditionCoverage();
+        jdbcTemplate.query(GET_EDITIONS, (RowCallbackHandler) rs -> {
+            var chart = MusicChart.fromId(rs.getByte(CHART_ID_COLUMN));
+            if (chart.isPresent()) {
+                coverage.add(chart.get(), rs.getShort(YEAR_COLUMN), rs.getByte(WEEK_COLUMN));
+            }
+        });
+        return coverage;
+    }
+
+    @Override
+    public EditionCoverage getEditionCoverage(MusicChart chart, short year) {
+        var coverage = new EditionCoverage();
+        jdbcTemplate.query(GET_WEEKS_OF_YEAR, (RowCallbackHandler) rs -> coverage.add(chart, year, rs.getByte(WEEK_COLUMN)),
+                chart.id(), year);
+        return coverage;
+    }
 }
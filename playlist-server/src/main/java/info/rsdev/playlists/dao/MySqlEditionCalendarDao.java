@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.ADD_ABSENT_EDITION;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.CHART_NAME_COLUMN;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.GET_ABSENT_EDITIONS;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.WEEK_NUMBER_COLUMN;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.YEAR_COLUMN;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.services.ChartEdition;
+import info.rsdev.playlists.services.MusicChart;
+
+/**
+ * Keeps the absent chart editions in the relational database, whatever store holds the chart items
+ */
+@Component
+public class MySqlEditionCalendarDao implements EditionCalendarDao {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public MySqlEditionCalendarDao(DataSource datasource) {
+        jdbcTemplate = new JdbcTemplate(datasource);
+    }
+
+    @Override
+    public List<ChartEdition> getAbsentEditions() {
+        List<ChartEdition> editions = new ArrayList<>();
+        jdbcTemplate.query(GET_ABSENT_EDITIONS, rs -> {
+            // editions of charts that are no longer supported are left out
+            var chart = MusicChart.fromChartName(rs.getString(CHART_NAME_COLUMN));
+            if (chart.isPresent()) {
+                editions.add(new ChartEdition(chart.get(), rs.getShort(YEAR_COLUMN), rs.getByte(WEEK_NUMBER_COLUMN)));
+            }
+        });
+        return editions;
+    }
+
+    @Override
+    public void addAbsentEdition(ChartEdition edition) {
+        jdbcTemplate.update(ADD_ABSENT_EDITION, edition.chart().chartName(), edition.year(), edition.weekNumber());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.ACQUIRE_LEASE;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.INSERT_RUN;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.IS_LEASE_HELD;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.RELEASE_LEASE;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.RENEW_LEASE;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the leases and the ingest runs in the relational database, whatever store holds the chart items
+ */
+@Component
+public class MySqlIngestLeaseDao implements IngestLeaseDao {
+
+    private static final int MAX_MESSAGE_LENGTH = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public MySqlIngestLeaseDao(DataSource datasource) {
+        jdbcTemplate = new JdbcTemplate(datasource);
+    }
+
+    @Override
+    public boolean acquire(String leaseName, String owner, Duration duration) {
+        return jdbcTemplate.update(ACQUIRE_LEASE, owner, duration.toSeconds(), leaseName, owner) == 1;
+    }
+
+    @Override
+    public boolean renew(String leaseName, String owner, Duration duration) {
+        return jdbcTemplate.update(RENEW_LEASE, duration.toSeconds(), leaseName, owner) == 1;
+    }
+
+    @Override
+    public void release(String leaseName, String owner) {
+        jdbcTemplate.update(RELEASE_LEASE, leaseName, owner);
+    }
+
+    @Override
+    public boolean isHeld(String leaseName) {
+        Integer count = jdbcTemplate.queryForObject(IS_LEASE_HELD, Integer.class, leaseName);
+        return count != null && count > 0;
+    }
+
+    @Override
+    public void recordRun(String owner, Instant startedAt, Duration duration, String outcome, String message) {
+        var truncatedMessage = message != null && message.length() > MAX_MESSAGE_LENGTH
+                ? message.substring(0, MAX_MESSAGE_LENGTH)
+                : message;
+        jdbcTemplate.update(INSERT_RUN, owner, Timestamp.from(startedAt), duration.toMillis(), outcome, truncatedMessage);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.ADD_WORK;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.CLAIM_WORK;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.COMPLETE_WORK;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.CURRENT_TIME;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.IS_WORK_DONE;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.RELEASE_WORK;
+import static info.rsdev.playlists.dao.IngestRunSqlConstants.RENEW_WORK;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.services.MusicChart;
+
+@Component
+public class MySqlWorkLeaseDao implements WorkLeaseDao {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public MySqlWorkLeaseDao(DataSource datasource) {
+        jdbcTemplate = new JdbcTemplate(datasource);
+    }
+
+    @Override
+    public Instant currentTime() {
+        return jdbcTemplate.queryForObject(CURRENT_TIME, Timestamp.class).toInstant();
+    }
+
+    @Override
+    public boolean claim(MusicChart chart, short year, String owner, Duration duration, Instant notDoneSince) {
+        jdbcTemplate.update(ADD_WORK, chart.chartName(), year);
+        return jdbcTemplate.update(CLAIM_WORK, owner, duration.toSeconds(), chart.chartName(), year, owner,
+                Timestamp.from(notDoneSince)) == 1;
+    }
+
+    @Override
+    public boolean isDone(MusicChart chart, short year, Instant since) {
+        var count = jdbcTemplate.queryForObject(IS_WORK_DONE, Integer.class, chart.chartName(), year, Timestamp.from(since));
+        return count != null && count > 0;
+    }
+
+    @Override
+    public boolean renew(MusicChart chart, short year, String owner, Duration duration) {
+        return jdbcTemplate.update(RENEW_WORK, duration.toSeconds(), chart.chartName(), year, owner) == 1;
+    }
+
+    @Override
+    public void complete(MusicChart chart, short year, String owner) {
+        jdbcTemplate.update(COMPLETE_WORK, chart.chartName(), year, owner);
+    }
+
+    @Override
+    public void release(MusicChart chart, short year, String owner) {
+        jdbcTemplate.update(RELEASE_WORK, chart.chartName(), year, owner);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.Watermark;
+import info.rsdev.playlists.services.MusicChart;
+
+/**
+ * Keeps the {@link Watermark}s of the charts in memory, so that the data store is not asked for them over and over
+ * again. The watermarks are advanced with the chart items that are inserted afterwards. A chart item that is inserted
+ * while the watermarks are loaded, is accounted for when the load is complete.
+ * <p>
+ * Other instances that share the data store write chart items as well, so the watermarks are loaded again when they
+ * are older than the maximum age, or after {@link #invalidate()}.
+ */
+public final class WatermarkCache {
+
+    private static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(1);
+
+    private final Map<MusicChart, Watermark> watermarks = new EnumMap<>(MusicChart.class);
+
+    private final long maxAgeNanos;
+
+    private boolean loaded = false;
+
+    private long loadedAt;
+
+    public WatermarkCache() {
+        this(DEFAULT_MAX_AGE);
+    }
+
+    WatermarkCache(Duration maxAge) {
+        this.maxAgeNanos = maxAge.toNanos();
+    }
+
+    /**
+     * @param loader gets the watermarks from the data store, when they are not loaded yet or are too old
+     * @return the watermarks per chart; charts without any stored chart item are absent
+     */
+    public synchronized Map<MusicChart, Watermark> get(Supplier<Map<MusicChart, Watermark>> loader) {
+        if (!loaded || System.nanoTime() - loadedAt >= maxAgeNanos) {
+            long startedAt = System.nanoTime();
+            var stored = loader.get();
+            watermarks.clear();
+            watermarks.putAll(stored);
+            loaded = true;
+            loadedAt = startedAt;
+        }
+        return Collections.unmodifiableMap(new EnumMap<>(watermarks));
+    }
+
+    /**
+     * Account for chart items that are stored successfully
+     */
+    public synchronized void advance(List<ChartsItem> chartsItems) {
+        if (!loaded) {
+            // the chart items are stored already, so they are included when the watermarks are loaded
+            return;
+        }
+        for (ChartsItem chartsItem : chartsItems) {
+            MusicChart.fromChartName(chartsItem.chartName()).ifPresent(chart -> watermarks.merge(chart,
+                    new Watermark(chartsItem.year(), chartsItem.weekNumber()), Watermark::max));
+        }
+    }
+
+    /**
+     * Forget the watermarks, so that they are loaded from the data store again; for when chart items may have been
+     * stored without knowing which ones
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+        watermarks.clear();
+    }
+}
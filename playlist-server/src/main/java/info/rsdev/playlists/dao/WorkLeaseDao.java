@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import info.rsdev.playlists.services.MusicChart;
+
+/**
+ * Work leases let the instances that share a database divide the ingest work between them: a year of a chart is
+ * ingested by the instance that holds its lease. The lease of a crashed instance expires, so that another instance
+ * can take over its work. All times are taken from the database clock.
+ */
+public interface WorkLeaseDao {
+
+    /**
+     * @return the current time according to the database
+     */
+    Instant currentTime();
+
+    /**
+     * Claim the year of the chart, unless another owner holds it, or it was done after the given time
+     *
+     * @param notDoneSince the start of the current run; work that was done since, is not claimed again
+     * @return true when the work is ours for the given duration
+     */
+    boolean claim(MusicChart chart, short year, String owner, Duration duration, Instant notDoneSince);
+
+    /**
+     * @return true when the year of the chart was done after the given time
+     */
+    boolean isDone(MusicChart chart, short year, Instant since);
+
+    /**
+     * Extend the lease on the year of the chart
+     *
+     * @return false when the lease was lost to another owner
+     */
+    boolean renew(MusicChart chart, short year, String owner, Duration duration);
+
+    /**
+     * Mark the year of the chart as done and release its lease
+     */
+    void complete(MusicChart chart, short year, String owner);
+
+    /**
+     * Release the lease on the year of the chart without marking it done, so that another owner can take it over
+     */
+    void release(MusicChart chart, short year, String owner);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.domain;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+
+import info.rsdev.playlists.services.MusicChart;
+
+/**
+ * A compact record of the chart editions (chart, year and week) that are present in the persistence store. Every
+ * chart has a bitmap with one bit per week since {@link #FIRST_YEAR}, so the complete history of a chart takes only a
+ * few hundred bytes. Two coverages are equal when they contain the same editions.
+ */
+public class EditionCoverage {
+
+    public static final short FIRST_YEAR = 1900;
+
+    /* week numbers range from 1 to 53; bit 0 of every year is unused to keep the arithmetic simple */
+    private static final int BITS_PER_YEAR = 54;
+
+    private final Map<MusicChart, BitSet> editions = new EnumMap<>(MusicChart.class);
+
+    public synchronized void add(MusicChart chart, short year, byte weekNumber) {
+        editions.computeIfAbsent(chart, key -> new BitSet()).set(indexOf(year, weekNumber));
+    }
+
+    public synchronized boolean contains(MusicChart chart, short year, byte weekNumber) {
+        var bitmap = editions.get(chart);
+        return bitmap != null && bitmap.get(indexOf(year, weekNumber));
+    }
+
+    /**
+     * @return the number of editions of the given chart that are present
+     */
+    public synchronized int size(MusicChart chart) {
+        var bitmap = editions.get(chart);
+        return bitmap == null ? 0 : bitmap.cardinality();
+    }
+
+    private synchronized Map<MusicChart, BitSet> editions() {
+        Map<MusicChart, BitSet> copy = new EnumMap<>(MusicChart.class);
+        editions.forEach((chart, bitmap) -> copy.put(chart, (BitSet) bitmap.clone()));
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        // copied one at a time, so that two coverages are never locked at the same time
+        return other instanceof EditionCoverage coverage && editions().equals(coverage.editions());
+    }
+
+    @Override
+    public int hashCode() {
+        return editions().hashCode();
+    }
+
+    private static int indexOf(short year, byte weekNumber) {
+        if (year < FIRST_YEAR || weekNumber < 1 || weekNumber >= BITS_PER_YEAR) {
+            throw new IllegalArgumentException(String.format("Not a valid edition: year %d, week %d", year, weekNumber));
+        }
+        return (year - FIRST_YEAR) * BITS_PER_YEAR + weekNumber;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.domain;
+
+/**
+ * The latest chart edition that is stored for a chart: ingest resumes after it
+ *
+ * @param year       the latest year that is stored
+ * @param weekNumber the latest week that is stored in that year
+ */
+public record Watermark(short year, byte weekNumber) implements Comparable<Watermark> {
+
+    /**
+     * @return the later of this and the other watermark
+     */
+    public Watermark max(Watermark other) {
+        return other == null || compareTo(other) >= 0 ? this : other;
+    }
+
+    @Override
+    public int compareTo(Watermark other) {
+        if (year != other.year) {
+            return Short.compare(year, other.year);
+        }
+        return Byte.compare(weekNumber, other.weekNumber);
+    }
+}
@@ -1,12 +1,24 @@
 package info.rsdev.playlists.rest;
 
+import java.io.BufferedOutputStream;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Stream;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import info.rsdev.playlists.dao.ChartsItemDao;
 import info.rsdev.playlists.domain.Song;
@@ -15,10 +27,23 @@ import info.rsdev.playlists.services.MusicChart;
 @RestController
 public class PlaylistFacade {
 
+    private static final int NEWLINE = '\n';
+
     private final ChartsItemDao dao;
+
+    private final ObjectMapper objectMapper;
+
+    private final int maxStreamedYears;
     
-    public PlaylistFacade(ChartsItemDao dao) {
+    public PlaylistFacade(ChartsItemDao dao, ObjectMapper objectMapper,
+            @Value("${playlists.api.max-streamed-years:10}") int maxStreamedYears) {
+        if (maxStreamedYears < 1) {
+            throw new IllegalArgumentException("The number of streamed years must be at least 1, but was "
+                    + maxStreamedYears);
+        }
         this.dao = dao;
+        this.objectMapper = objectMapper;
+        this.maxStreamedYears = maxStreamedYears;
     }
     
     @GetMapping(path = "/api/public/info")
@@ -27,9 +52,53 @@ public class PlaylistFacade {
         return new InfoObject(chartNames);
     }
     
+    /**
+     * Get the songs that entered the charts in the given year. The charts can be narrowed down by passing one or
+     * more chart parameters, e.g. <code>?chart=TOP40&amp;chart=TIPPARADE</code>; all charts are used by default.
+     */
     @GetMapping(path = "/api/public/releases/{year}")
-    public Collection<Song> getReleases(@PathVariable("year") short year) {
-        return dao.getReleases(year);
+    public Collection<Song> getReleases(@PathVariable("year") short year,
+            @RequestParam(name = "chart", required = false) Set<MusicChart> charts) {
+        return dao.getReleases(year, orAllCharts(charts));
+    }
+
+    /**
+     * Get the songs that entered the charts in the given year, or up to and including the 'until' year, as
+     * newline delimited json. Every song is written as soon as it is read from the data store, so the memory needed
+     * does not depend on the number of songs. At most {@link #maxStreamedYears} years are streamed per request; a
+     * request for more years, or with an 'until' year before the first year, is answered with status 400.
+     */
+    @GetMapping(path = "/api/public/releases/{year}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamReleases(@PathVariable("year") short year,
+            @RequestParam(name = "until", required = false) Short untilYear,
+            @RequestParam(name = "chart", required = false) Set<MusicChart> charts) {
+        int lastYear = untilYear == null ? year : untilYear;
+        if (lastYear < year) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("The until year (%d) must not be before the year (%d)", lastYear, year));
+        }
+        if (lastYear - year >= maxStreamedYears) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("At most %d years can be requested at once", maxStreamedYears));
+        }
+        var selectedCharts = orAllCharts(charts);
+        StreamingResponseBody body = out -> {
+            var buffered = new BufferedOutputStream(out);
+            for (int releaseYear = year; releaseYear <= lastYear; releaseYear++) {
+                try (Stream<Song> releases = dao.streamReleases((short) releaseYear, selectedCharts)) {
+                    for (var songs = releases.iterator(); songs.hasNext();) {
+                        buffered.write(objectMapper.writeValueAsBytes(songs.next()));
+                        buffered.write(NEWLINE);
+                    }
+                }
+                buffered.flush();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    private static Set<MusicChart> orAllCharts(Set<MusicChart> charts) {
+        return charts == null || charts.isEmpty() ? EnumSet.allOf(MusicChart.class) : charts;
     }
 
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.util.Comparator;
+
+/**
+ * A single weekly edition of a {@link MusicChart}; editions are ordered by chart, year and week
+ */
+public record ChartEdition(MusicChart chart, short year, byte weekNumber) implements Comparable<ChartEdition> {
+
+    private static final Comparator<ChartEdition> ORDER = Comparator.comparing(ChartEdition::chart)
+            .thenComparingInt(ChartEdition::year)
+            .thenComparingInt(ChartEdition::weekNumber);
+
+    @Override
+    public int compareTo(ChartEdition other) {
+        return ORDER.compare(this, other);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.exception.FailedHostException;
+import info.rsdev.playlists.services.PageArchive.ArchivedPage;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Downloads the raw html of chart pages from the Internet. Pages are looked up in the {@link PageArchive} first; when
+ * a page must be (re)downloaded, the validators of the archived copy are sent along, so that an unchanged page is not
+ * transferred again. Failed downloads are retried according to the {@link FetchRetryPolicy}.
+ * <p>
+ * All downloads share a single {@link HttpClient}, so connections are kept alive and reused (and multiplexed when the
+ * server speaks HTTP/2) and responses are transferred compressed. At most {@code playlists.http.pool-size} downloads
+ * run at the same time; the JDK only offers a JVM wide setting for the size of its connection pool, which this class
+ * leaves alone. The html is handed to jsoup for parsing.
+ */
+@Component
+public class ChartPageClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChartPageClient.class);
+
+    private static final String ABORT_MSG = "Website down? Abort scraping to prevent holes in the chart data.";
+
+    private static final String USERAGENT_STRING = "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/117.0";
+
+    /* The JDK decompresses neither of these by itself, and brotli is not supported by the JDK at all */
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final PageArchive archive;
+
+    private final FetchRetryPolicy retryPolicy;
+
+    private final HttpClient httpClient;
+
+    private final Duration readTimeout;
+
+    /* bounds the number of downloads in progress, and with that the number of connections to the host */
+    private final Semaphore downloadPermits;
+
+    public ChartPageClient(PageArchive archive, FetchRetryPolicy retryPolicy,
+            @Value("${playlists.http.connect-timeout-millis:5000}") long connectTimeoutMillis,
+            @Value("${playlists.http.read-timeout-millis:30000}") long readTimeoutMillis,
+            @Value("${playlists.http.pool-size:8}") int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The http pool size must be at least 1, but was " + poolSize);
+        }
+        this.archive = archive;
+        this.retryPolicy = retryPolicy;
+        this.readTimeout = Duration.ofMillis(readTimeoutMillis);
+        this.downloadPermits = new Semaphore(poolSize, true);
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+    }
+
+    /**
+     * Prepare for a new ingest run, which gets a fresh retry budget
+     */
+    public void startRun() {
+        retryPolicy.startRun();
+    }
+
+    /**
+     * Get the raw html of the page at the given location
+     *
+     * @param location   the url of the page
+     * @param revalidate false when the page never changes once published, so that an archived copy can be used
+     *                   without asking the server; true to check with the server if the archived copy is still valid
+     * @return the html of the page, or an empty optional when the page does not exist
+     * @throws FailedHostException when the host is unreachable or not operating correctly
+     */
+    public Optional<byte[]> get(String location, boolean revalidate) throws FailedHostException {
+        var archived = archive.get(location);
+        if (archived.isPresent() && !revalidate) {
+            LOGGER.debug("Using archived copy of {}", location);
+            return archived.map(ArchivedPage::html);
+        }
+
+        var uri = URI.create(location);
+        return retryPolicy.execute(uri.getHost(), () -> download(uri, archived));
+    }
+
+    private Optional<byte[]> download(URI location, Optional<ArchivedPage> archived) throws IOException {
+        long start = System.currentTimeMillis();
+        var request = HttpRequest.newBuilder(location)
+                .timeout(readTimeout)
+                .header("User-Agent", USERAGENT_STRING)
+                .header("Accept-Encoding", ACCEPTED_ENCODINGS);
+        archived.ifPresent(page -> addValidators(request, page));
+        try {
+            downloadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FailedHostException("Interrupted while waiting to fetch " + location, e);
+        }
+        try {
+            var response = httpClient.send(request.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+            var status = response.statusCode();
+            try (InputStream body = response.body()) {
+                if (status == HttpStatus.SC_NOT_MODIFIED && archived.isPresent()) {
+                    LOGGER.debug("Archived copy of {} is still valid", location);
+                    return archived.map(ArchivedPage::html);
+                } else if (status == HttpStatus.SC_NOT_FOUND) {
+                    // we might query a non-existent week, e.g. week 53; the EditionCalendar remembers it
+                    LOGGER.info("No chart edition at {}", location);
+                    return Optional.empty();
+                } else if (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR || status == SC_TOO_MANY_REQUESTS) {
+                    // a transient problem at the host, worth retrying
+                    throw new IOException("HTTP status " + status + " fetching " + location);
+                } else if (status != HttpStatus.SC_OK) {
+                    throw new FailedHostException(ABORT_MSG + " HTTP status " + status + " fetching " + location);
+                }
+                var html = decode(body, response).readAllBytes();
+                archive.put(new ArchivedPage(location.toString(), html, response.headers().firstValue("ETag").orElse(null),
+                        response.headers().firstValue("Last-Modified").orElse(null)));
+                return Optional.of(html);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FailedHostException("Interrupted while fetching " + location, e);
+        } finally {
+            downloadPermits.release();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Fetched {} in {} ms.", location, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    private InputStream decode(InputStream body, HttpResponse<?> response) throws IOException {
+        var encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        return switch (encoding.trim().toLowerCase()) {
+            case "gzip" -> new GZIPInputStream(body);
+            case "deflate" -> new InflaterInputStream(body);
+            case "identity" -> body;
+            default -> throw new IOException("Unsupported content encoding " + encoding + " from " + response.uri());
+        };
+    }
+
+    private void addValidators(HttpRequest.Builder request, ArchivedPage page) {
+        if (page.etag() != null) {
+            request.header("If-None-Match", page.etag());
+        }
+        if (page.lastModified() != null) {
+            request.header("If-Modified-Since", page.lastModified());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        httpClient.close();
+    }
+}
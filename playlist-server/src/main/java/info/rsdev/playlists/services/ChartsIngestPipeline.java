@@ -0,0 +1,281 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.ChartsItemDao;
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.exception.FailedHostException;
+
+/**
+ * A two stage pipeline that scrapes chart editions and persists them. The scrape stage runs on virtual threads, with
+ * at most {@link #parallelism} editions in flight, and hands off the results through a bounded queue to the write
+ * stage. The write stage merges the results of several editions into a single {@link ChartsItemDao#insert(List)}
+ * call.
+ * <p>
+ * The queue preserves the order of the editions: when the host fails for one edition, the editions before it are
+ * persisted and the ones after it are cancelled, so no holes are left behind in the chart data.
+ */
+@Component
+public class ChartsIngestPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChartsIngestPipeline.class);
+
+    /**
+     * Receives the outcome of individual editions; called from the write stage
+     */
+    public interface Listener {
+
+        /**
+         * Called when the page of an edition does not exist; not when the page exists without chart items
+         */
+        default void editionAbsent(DocumentFetcher edition) {
+        }
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+    };
+
+    /* Marks the end of the stream of editions on the hand-off queue */
+    private static final Future<ScrapeResult> END_OF_EDITIONS = CompletableFuture.completedFuture(null);
+
+    private final ScrapeService scrapeService;
+
+    private final ChartsItemDao chartsItemDao;
+
+    private final int parallelism;
+
+    private final int queueCapacity;
+
+    private final int writeBatchSize;
+
+    public ChartsIngestPipeline(ScrapeService scrapeService, ChartsItemDao chartsItemDao,
+            @Value("${playlists.ingest.parallelism:1}") int parallelism,
+            @Value("${playlists.ingest.queue-capacity:16}") int queueCapacity,
+            @Value("${playlists.ingest.write-batch-size:400}") int writeBatchSize) {
+        if (parallelism < 1 || queueCapacity < 1 || writeBatchSize < 1) {
+            throw new IllegalArgumentException(String.format("Ingest parallelism (%d), queue capacity (%d) and write "
+                    + "batch size (%d) must be at least 1", parallelism, queueCapacity, writeBatchSize));
+        }
+        this.scrapeService = scrapeService;
+        this.chartsItemDao = chartsItemDao;
+        this.parallelism = parallelism;
+        this.queueCapacity = queueCapacity;
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Scrape and persist the editions that the given fetchers point at, in the order given.
+     *
+     * @param description a short description of the editions, used for logging only
+     * @param editions    the {@link DocumentFetcher}s pointing at the chart editions to ingest
+     * @throws FailedHostException when the host failed to deliver an edition; the editions before it are persisted
+     */
+    public void run(String description, List<? extends DocumentFetcher> editions) throws FailedHostException {
+        run(description, editions, writeBatchSize, NO_LISTENER);
+    }
+
+    /**
+     * Scrape and persist the editions that the given fetchers point at, in the order given, and report the outcome
+     * per edition to the listener
+     *
+     * @see #run(String, List)
+     */
+    public void run(String description, List<? extends DocumentFetcher> editions, Listener listener)
+            throws FailedHostException {
+        run(description, editions, writeBatchSize, listener);
+    }
+
+    /**
+     * Scrape and persist the editions that the given fetchers point at, in the order given, with a non-default
+     * number of songs per write batch
+     *
+     * @see #run(String, List)
+     */
+    public void run(String description, List<? extends DocumentFetcher> editions, int writeBatchSize)
+            throws FailedHostException {
+        run(description, editions, writeBatchSize, NO_LISTENER);
+    }
+
+    private void run(String description, List<? extends DocumentFetcher> editions, int writeBatchSize,
+            Listener listener) throws FailedHostException {
+        if (writeBatchSize < 1) {
+            throw new IllegalArgumentException("Write batch size must be at least 1, but was " + writeBatchSize);
+        }
+        var statistics = new Statistics();
+        BlockingQueue<Future<ScrapeResult>> handOff = new ArrayBlockingQueue<>(queueCapacity);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            executor.submit(() -> produce(editions, executor, handOff, statistics));
+            try {
+                consume(description, handOff, writeBatchSize, listener, statistics);
+            } finally {
+                // stops the producer and cancels the scrapes that are still pending when we stopped early
+                executor.shutdownNow();
+            }
+        }
+        statistics.log(description);
+    }
+
+    private Void produce(List<? extends DocumentFetcher> editions, ExecutorService executor,
+            BlockingQueue<Future<ScrapeResult>> handOff, Statistics statistics) throws InterruptedException {
+        var permits = new Semaphore(parallelism, true);
+        for (DocumentFetcher edition : editions) {
+            var scrape = executor.submit(() -> scrape(edition, permits, statistics));
+            long start = System.currentTimeMillis();
+            handOff.put(scrape);
+            statistics.producerBlockedMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+        handOff.put(END_OF_EDITIONS);
+        return null;
+    }
+
+    private ScrapeResult scrape(DocumentFetcher edition, Semaphore permits, Statistics statistics)
+            throws InterruptedException {
+        permits.acquire();
+        try {
+            long start = System.currentTimeMillis();
+            var chartsItems = scrapeService.scrapeEdition(edition);
+            statistics.scrapeMillis.addAndGet(System.currentTimeMillis() - start);
+            statistics.editionsScraped.incrementAndGet();
+            return new ScrapeResult(edition, chartsItems.isPresent(), chartsItems.orElse(List.of()));
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void consume(String description, BlockingQueue<Future<ScrapeResult>> handOff, int writeBatchSize,
+            Listener listener, Statistics statistics) {
+        List<ChartsItem> batch = new ArrayList<>(writeBatchSize + 50);
+        try {
+            while (true) {
+                long start = System.currentTimeMillis();
+                statistics.sampleQueueDepth(handOff.size());
+                var scrape = handOff.take();
+                if (scrape == END_OF_EDITIONS) {
+                    break;
+                }
+                var result = scrape.get();
+                statistics.writerWaitMillis += System.currentTimeMillis() - start;
+                if (!result.found()) {
+                    listener.editionAbsent(result.edition());
+                } else if (result.chartsItems().isEmpty()) {
+                    // maybe the layout of the page changed; the edition stays missing, so it is tried again later
+                    LOGGER.warn("No chart items found at {}", result.edition().location());
+                }
+                batch.addAll(result.chartsItems());
+                if (batch.size() >= writeBatchSize) {
+                    write(description, batch, statistics);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FailedHostException cause) {
+                // the batch only contains editions that precede the failed one, so it is safe to store them
+                try {
+                    write(description, batch, statistics);
+                } catch (RuntimeException writeFailure) {
+                    writeFailure.addSuppressed(cause);
+                    throw writeFailure;
+                }
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The ingest of " + description + " was interrupted", e);
+        }
+        // not in a finally block: a batch whose write failed must not be written again
+        write(description, batch, statistics);
+    }
+
+    private void write(String description, List<ChartsItem> batch, Statistics statistics) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        chartsItemDao.insert(batch);
+        long dbMillis = System.currentTimeMillis() - start;
+        statistics.rowsWritten += batch.size();
+        statistics.batchesWritten++;
+        statistics.writeMillis += dbMillis;
+        var first = batch.get(0);
+        var last = batch.get(batch.size() - 1);
+        LOGGER.info("persisted {} {}/week {} - {}/week {} ({} songs [ db={}ms.])", description, first.year(),
+                first.weekNumber(), last.year(), last.weekNumber(), batch.size(), dbMillis);
+        batch.clear();
+    }
+
+    private record ScrapeResult(DocumentFetcher edition, boolean found, List<ChartsItem> chartsItems) {
+    }
+
+    /**
+     * Per run counters of both stages. Scrape counters are updated from the virtual threads; the others only from the
+     * writing thread.
+     */
+    private static class Statistics {
+        private final long started = System.currentTimeMillis();
+        private final AtomicLong editionsScraped = new AtomicLong();
+        private final AtomicLong scrapeMillis = new AtomicLong();
+        private final AtomicLong producerBlockedMillis = new AtomicLong();
+        private long writerWaitMillis;
+        private long writeMillis;
+        private long rowsWritten;
+        private long batchesWritten;
+        private long queueDepthSamples;
+        private long queueDepthTotal;
+        private int maxQueueDepth;
+
+        private void sampleQueueDepth(int depth) {
+            queueDepthSamples++;
+            queueDepthTotal += depth;
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+        }
+
+        private void log(String description) {
+            long elapsedMillis = Math.max(1L, System.currentTimeMillis() - started);
+            long editions = editionsScraped.get();
+            LOGGER.info("Ingest of {} took {}ms.: scrape stage {} editions ({}/s, {}ms. per edition, {}ms. blocked on "
+                    + "full queue), write stage {} songs in {} batches ({}/s, {}ms. in db, {}ms. waiting for scrapes), "
+                    + "queue depth avg={} max={}",
+                    description, elapsedMillis, editions, perSecond(editions, elapsedMillis),
+                    editions == 0 ? 0 : scrapeMillis.get() / editions, producerBlockedMillis.get(),
+                    rowsWritten, batchesWritten, perSecond(rowsWritten, elapsedMillis), writeMillis, writerWaitMillis,
+                    queueDepthSamples == 0 ? 0 : queueDepthTotal / queueDepthSamples, maxQueueDepth);
+        }
+
+        private static long perSecond(long count, long millis) {
+            return count * 1000L / millis;
+        }
+    }
+}
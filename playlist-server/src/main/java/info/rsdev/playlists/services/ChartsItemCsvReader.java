@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.Song;
+
+/**
+ * Reads {@link ChartsItem}s from a tab separated file, as written by MariaDB with:
+ * <pre>
+ * select chart_id, year, week_number, position, if(is_newcommer,1,0), artist, title into outfile '...'
+ *     CHARACTER SET utf8 FIELDS TERMINATED BY '\t' OPTIONALLY ENCLOSED BY '`' LINES TERMINATED BY "\n" from chart_items;
+ * </pre>
+ * Strings may be enclosed in backticks, and special characters are escaped with a backslash. A header line is
+ * skipped.
+ */
+public class ChartsItemCsvReader implements Closeable {
+
+    private static final int FIELD_COUNT = 7;
+
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char LINE_SEPARATOR = '\n';
+    private static final char ENCLOSURE = '`';
+    private static final char ESCAPE = '\\';
+
+    private final BufferedReader reader;
+
+    private int lineNumber = 0;
+
+    public ChartsItemCsvReader(Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    /**
+     * @return the next chart item, or an empty optional at the end of the file
+     * @throws IOException when the file can not be read, or contains a malformed line
+     */
+    public Optional<ChartsItem> next() throws IOException {
+        List<String> fields;
+        do {
+            fields = readFields();
+            if (fields == null) {
+                return Optional.empty();
+            }
+        } while (isHeader(fields) || (fields.size() == 1 && fields.get(0).isEmpty()));
+
+        if (fields.size() != FIELD_COUNT) {
+            throw new IOException(String.format("Line %d has %d fields instead of %d", lineNumber, fields.size(), FIELD_COUNT));
+        }
+        try {
+            return Optional.of(new ChartsItem(fields.get(0), Short.parseShort(fields.get(1)), Byte.parseByte(fields.get(2)),
+                    Byte.parseByte(fields.get(3)), "1".equals(fields.get(4)), new Song(fields.get(5), fields.get(6))));
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Line %d is malformed: %s", lineNumber, e.getMessage()), e);
+        }
+    }
+
+    private boolean isHeader(List<String> fields) {
+        return lineNumber == 1 && fields.size() > 1 && !fields.get(1).chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * @return the fields of the next line, or null at the end of the file
+     */
+    private List<String> readFields() throws IOException {
+        int c = reader.read();
+        if (c < 0) {
+            return null;
+        }
+        lineNumber++;
+        List<String> fields = new ArrayList<>(FIELD_COUNT);
+        var field = new StringBuilder();
+        boolean enclosed = false;
+        while (c >= 0) {
+            char ch = (char) c;
+            if (ch == ESCAPE) {
+                c = reader.read();
+                if (c < 0) {
+                    throw new IOException("Line " + lineNumber + " ends with an escape character");
+                }
+                field.append(unescape((char) c));
+            } else if (ch == ENCLOSURE && field.isEmpty() && !enclosed) {
+                enclosed = true;
+            } else if (ch == ENCLOSURE && enclosed) {
+                enclosed = false;
+            } else if (!enclosed && ch == FIELD_SEPARATOR) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (!enclosed && ch == LINE_SEPARATOR) {
+                break;
+            } else {
+                field.append(ch);
+            }
+            c = reader.read();
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static char unescape(char escaped) {
+        return switch (escaped) {
+            case '0' -> '\0';
+            case 'b' -> '\b';
+            case 'n' -> '\n';
+            case 'r' -> '\r';
+            case 't' -> '\t';
+            case 'Z' -> (char) 26;
+            default -> escaped;
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
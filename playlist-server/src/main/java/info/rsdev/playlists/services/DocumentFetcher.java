@@ -17,6 +17,8 @@ package info.rsdev.playlists.services;
 
 import org.jsoup.nodes.Document;
 
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Optional;
 
 /**
@@ -26,10 +28,20 @@ import java.util.Optional;
 public interface DocumentFetcher {
     /**
      * Retrieve the information at the given location
-     * @return the [Document] when it could be retrieved, null otherwise
+     * @return the [Document] when it could be retrieved, an empty optional when the location does not exist
      */
     Optional<Document> fetch();
 
+    /**
+     * Retrieve the raw html at the given location, for parsers that do not need a complete [Document]. The default
+     * implementation serializes the fetched [Document]; implementations that have the raw html at hand should
+     * override it.
+     * @return a [Reader] over the html when it could be retrieved, an empty optional when the location does not exist
+     */
+    default Optional<Reader> fetchSource() {
+        return fetch().map(document -> new StringReader(document.outerHtml()));
+    }
+
     /**
      * Get a string representation of the given location of this instance
      * @return a String representing the location
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.time.LocalDate;
+import java.time.temporal.IsoFields;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.EditionCalendarDao;
+
+/**
+ * Knows which editions of the charts exist. The charts website does not publish every week number in every year,
+ * e.g. week 53 exists in a few years only and sometimes a year starts with week 2. Editions that the website reported
+ * as not found are remembered in the database, so that no instance requests them again. Only editions from past years
+ * are remembered, since an edition of the current year may simply not be published yet.
+ */
+@Component
+public class EditionCalendar {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EditionCalendar.class);
+
+    private final EditionCalendarDao calendarDao;
+
+    private final Set<ChartEdition> absentEditions = new TreeSet<>();
+
+    public EditionCalendar(EditionCalendarDao calendarDao) {
+        this.calendarDao = calendarDao;
+    }
+
+    /**
+     * Read the absent editions again, including the ones that other instances found since the previous run
+     */
+    public synchronized void refresh() {
+        absentEditions.clear();
+        absentEditions.addAll(calendarDao.getAbsentEditions());
+        LOGGER.info("Loaded {} absent chart editions", absentEditions.size());
+    }
+
+    /**
+     * Get the last week number of the given year that may have been published by the charts website
+     *
+     * @param year  the year of interest
+     * @param today the current date
+     * @return the last week number of the year that may exist, or zero when no edition of the year is published yet
+     */
+    public byte lastWeek(short year, LocalDate today) {
+        if (year < today.getYear()) {
+            return 53;
+        }
+        // The charts are numbered like the ISO weeks; the first and last days of a year may belong to an ISO week of
+        // the adjacent year
+        var weekBasedYear = today.get(IsoFields.WEEK_BASED_YEAR);
+        if (weekBasedYear < year) {
+            return 0;
+        } else if (weekBasedYear > year) {
+            return 53;
+        }
+        return (byte) today.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+    }
+
+    public synchronized boolean isAbsent(ChartEdition edition) {
+        return absentEditions.contains(edition);
+    }
+
+    /**
+     * Remember that the charts website does not have the given edition. Only call this when the website said so, e.g.
+     * with a 404 response; a page that exists but has no chart items may be the result of a changed page layout.
+     *
+     * @param edition the edition that was not found
+     * @param today   the current date
+     * @return true when the edition is remembered, false when it is too recent to tell if it will ever exist
+     */
+    public synchronized boolean markAbsent(ChartEdition edition, LocalDate today) {
+        if (edition.year() >= today.getYear() || !absentEditions.add(edition)) {
+            return false;
+        }
+        try {
+            calendarDao.addAbsentEdition(edition);
+        } catch (DataAccessException e) {
+            // the edition is requested again with the next run
+            LOGGER.warn("Could not store that edition {} is absent: {}", edition, e.getMessage());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.exception.FailedHostException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Retries failed requests to the charts website. Failed attempts are retried after an exponential backoff with full
+ * jitter, as long as the retry budget of the current run is not used up. Every host has a {@link HostCircuitBreaker}
+ * that counts the consecutive failures of all requests to the host; it opens at the latest when a single request used
+ * all of its attempts. While the circuit is open, requests pause until the host is probed successfully, instead of
+ * giving up, so that a short outage does not stop the run. When the circuit opens too often in a row, the host is
+ * considered down and a {@link FailedHostException} stops the run.
+ * <p>
+ * The retries, the remaining budget and the state of the circuits are published as metrics.
+ */
+@Component
+public class FetchRetryPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FetchRetryPolicy.class);
+
+    private static final String ABORT_MSG = "Website down? Abort scraping to prevent holes in the chart data.";
+
+    /**
+     * A request to a host that may fail with an {@link IOException} that is worth retrying. Failures that are not
+     * worth retrying are signalled with a {@link FailedHostException}.
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    private final int maxAttempts;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final int retryBudget;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final int maxOpenings;
+
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicInteger remainingBudget = new AtomicInteger();
+
+    private final Map<String, HostCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    public FetchRetryPolicy(MeterRegistry meterRegistry,
+            @Value("${playlists.fetch.max-attempts:4}") int maxAttempts,
+            @Value("${playlists.fetch.initial-backoff-millis:500}") long initialBackoffMillis,
+            @Value("${playlists.fetch.max-backoff-millis:30000}") long maxBackoffMillis,
+            @Value("${playlists.fetch.retry-budget:100}") int retryBudget,
+            @Value("${playlists.fetch.circuit.failure-threshold:5}") int failureThreshold,
+            @Value("${playlists.fetch.circuit.open-millis:60000}") long openMillis,
+            @Value("${playlists.fetch.circuit.max-openings:5}") int maxOpenings) {
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.retryBudget = retryBudget;
+        // otherwise a request would give up before the circuit could open
+        this.failureThreshold = Math.min(failureThreshold, maxAttempts);
+        this.openMillis = openMillis;
+        this.maxOpenings = maxOpenings;
+        this.remainingBudget.set(retryBudget);
+        Gauge.builder("playlists.fetch.retry.budget.remaining", remainingBudget, AtomicInteger::get)
+                .description("Retries left in the current ingest run")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Reset the retry budget at the start of an ingest run
+     */
+    public void startRun() {
+        remainingBudget.set(retryBudget);
+    }
+
+    /**
+     * Execute the request, retrying it when it fails
+     *
+     * @param host    the host that the request is sent to
+     * @param request the request
+     * @return the outcome of the first successful attempt
+     * @throws FailedHostException when the request does not succeed within the limits of this policy
+     */
+    public <T> T execute(String host, Request<T> request) throws FailedHostException {
+        var circuitBreaker = circuitBreakers.computeIfAbsent(host, this::newCircuitBreaker);
+        for (int attempt = 1;; attempt++) {
+            awaitPermission(host, circuitBreaker);
+            try {
+                var result = request.execute();
+                circuitBreaker.onSuccess();
+                return result;
+            } catch (FailedHostException e) {
+                // not worth retrying, but the host did respond
+                circuitBreaker.onSuccess();
+                throw e;
+            } catch (IOException e) {
+                if (circuitBreaker.onFailure(System.currentTimeMillis())) {
+                    LOGGER.warn("Circuit for {} opened for {}ms. after: {}", host, openMillis, e.getMessage());
+                    counter("playlists.fetch.circuit.opened", host).increment();
+                }
+                if (circuitBreaker.getState() == HostCircuitBreaker.State.OPEN) {
+                    // the circuit breaker decides when to try again, and when to give up on the host
+                    counter("playlists.fetch.retries", host).increment();
+                    LOGGER.warn("Attempt {} to {} failed ({}), retrying when the circuit closes", attempt, host,
+                            e.getMessage());
+                    continue;
+                }
+                if (attempt >= maxAttempts || remainingBudget.getAndUpdate(left -> Math.max(0, left - 1)) <= 0) {
+                    counter("playlists.fetch.failures", host).increment();
+                    throw new FailedHostException(ABORT_MSG, e);
+                }
+                counter("playlists.fetch.retries", host).increment();
+                var backoff = backoffMillis(attempt);
+                LOGGER.warn("Attempt {} to {} failed ({}), retrying in {}ms.", attempt, host, e.getMessage(), backoff);
+                sleep(backoff);
+            } catch (RuntimeException e) {
+                // not retried, but it counts as a failure: a probe request must not stay in flight forever, or the
+                // other requests to the host keep waiting for its outcome
+                if (circuitBreaker.onFailure(System.currentTimeMillis())) {
+                    LOGGER.warn("Circuit for {} opened for {}ms. after: {}", host, openMillis, e.toString());
+                    counter("playlists.fetch.circuit.opened", host).increment();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void awaitPermission(String host, HostCircuitBreaker circuitBreaker) {
+        while (true) {
+            // checked before asking, because the circuit may have been open for long enough already to be probed
+            if (circuitBreaker.getConsecutiveOpenings() > maxOpenings) {
+                counter("playlists.fetch.failures", host).increment();
+                throw new FailedHostException(ABORT_MSG + " Circuit for " + host + " opened "
+                        + circuitBreaker.getConsecutiveOpenings() + " times in a row");
+            }
+            var waitMillis = circuitBreaker.acquire(System.currentTimeMillis());
+            if (waitMillis <= 0) {
+                return;
+            }
+            sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Exponential backoff with full jitter: a random wait between zero and the exponential limit, so that parallel
+     * scrapers do not retry in lockstep
+     */
+    private long backoffMillis(int attempt) {
+        var limit = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    private HostCircuitBreaker newCircuitBreaker(String host) {
+        var circuitBreaker = new HostCircuitBreaker(failureThreshold, openMillis);
+        Gauge.builder("playlists.fetch.circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                .description("State of the circuit breaker: 0=closed, 1=half open, 2=open")
+                .tag("host", host)
+                .register(meterRegistry);
+        return circuitBreaker;
+    }
+
+    private Counter counter(String name, String host) {
+        return meterRegistry.counter(name, "host", host);
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FailedHostException("Interrupted while waiting to retry", e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * Fetches a chart edition from a html file that was saved to disk earlier. Files with the extension '.gz', like the
+ * ones in the {@link PageArchive}, are decompressed on the fly.
+ */
+public record FileDocumentFetcher(Path fileLocation) implements DocumentFetcher {
+
+    @Override
+    public Optional<Document> fetch() {
+        try (InputStream in = open()) {
+            return Optional.of(Jsoup.parse(in, null, location()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Saved chart pages are UTF-8 encoded, like the pages on the charts website
+     */
+    @Override
+    public Optional<Reader> fetchSource() {
+        try {
+            return Optional.of(new InputStreamReader(open(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private InputStream open() throws IOException {
+        var in = Files.newInputStream(fileLocation);
+        return fileLocation.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    @Override
+    public String location() {
+        return fileLocation.toString();
+    }
+}
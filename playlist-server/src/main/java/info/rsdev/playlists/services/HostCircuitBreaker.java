@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+/**
+ * A circuit breaker for a single host. After a number of consecutive failures the circuit opens and callers pause,
+ * instead of hammering a host that is down. When the pause is over, a single probe request is let through: when it
+ * succeeds the circuit closes again, otherwise the circuit re-opens for another pause.
+ * <p>
+ * The breaker never sleeps itself; it tells the caller how long to wait, so that no thread sleeps while holding its
+ * lock.
+ */
+class HostCircuitBreaker {
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /* how long a caller waits before checking again whether a probe request succeeded */
+    private static final long PROBE_WAIT_MILLIS = 1000L;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    private int consecutiveOpenings;
+
+    private long openUntil;
+
+    private boolean probeInFlight;
+
+    HostCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Ask permission to send a request to the host
+     *
+     * @return zero when the request may be sent, otherwise the number of milliseconds to wait before asking again
+     */
+    synchronized long acquire(long now) {
+        if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        return switch (state) {
+            case CLOSED -> 0L;
+            case OPEN -> openUntil - now;
+            case HALF_OPEN -> {
+                if (probeInFlight) {
+                    yield PROBE_WAIT_MILLIS;
+                }
+                probeInFlight = true;
+                yield 0L;
+            }
+        };
+    }
+
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        consecutiveOpenings = 0;
+        probeInFlight = false;
+    }
+
+    /**
+     * Register a failed request
+     *
+     * @return true when this failure opened the circuit
+     */
+    synchronized boolean onFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openUntil = now + openMillis;
+            probeInFlight = false;
+            consecutiveOpenings++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of times the circuit opened since the last successful request
+     */
+    synchronized int getConsecutiveOpenings() {
+        return consecutiveOpenings;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.domain.EditionCoverage;
+
+/**
+ * Determines which editions of a chart are missing from the persistence store, including the holes in the middle of
+ * its history, so that only those are scraped
+ */
+@Component
+public class IngestPlanner {
+
+    /**
+     * List the editions of the chart, from its first edition up to today, that are not covered yet and that are not
+     * known to be absent from the charts website
+     *
+     * @param chart    the chart to plan for
+     * @param coverage the editions that are present in the persistence store
+     * @param calendar the editions that exist on the charts website
+     * @param today    the current date, which limits the editions of the current year
+     * @return the missing editions in chronological order
+     */
+    public List<ChartEdition> getMissingEditions(MusicChart chart, EditionCoverage coverage, EditionCalendar calendar,
+            LocalDate today) {
+        List<ChartEdition> missing = new ArrayList<>();
+        short currentYear = (short) today.getYear();
+        for (short year = chart.yearStarted(); year <= currentYear; year++) {
+            byte firstWeek = year == chart.yearStarted() ? chart.weekStarted() : 1;
+            byte lastWeek = calendar.lastWeek(year, today);
+            for (byte weekNumber = firstWeek; weekNumber <= lastWeek; weekNumber++) {
+                var edition = new ChartEdition(chart, year, weekNumber);
+                if (!coverage.contains(chart, year, weekNumber) && !calendar.isAbsent(edition)) {
+                    missing.add(edition);
+                }
+            }
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static info.rsdev.playlists.dao.IngestLeaseDao.INGEST_LEASE;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.IngestLeaseDao;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Makes sure that only one ingest run happens at a time. Within this JVM, a trigger that arrives while a run is in
+ * progress joins that run instead of starting another one. Across the instances that share a database, a lease must
+ * be taken before running; the lease is renewed while the run is in progress, so that it expires when this instance
+ * dies, and the run is stopped when the lease is lost. When the instances share the work through
+ * {@link IngestWorkLeases}, they all run and no lease is taken here; they only skip the run while other work holds
+ * the lease, see {@link #runWithIngestLease(String, Runnable)}.
+ * Every run is recorded with its duration and outcome, timed in the {@code playlists.ingest.run} metric and
+ * published as an {@link IngestRunFinished} event.
+ */
+@Component
+public class IngestRunCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestRunCoordinator.class);
+
+    public enum Outcome {
+        /** The run finished */
+        COMPLETED,
+        /** The run was aborted by an exception */
+        FAILED,
+        /** Another instance or other work holds the lease, so this instance did not run */
+        SKIPPED
+    }
+
+    private final MusicTitleService titleService;
+
+    private final IngestLeaseDao leaseDao;
+
+    private final MeterRegistry meterRegistry;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final Duration leaseDuration;
+
+    private final boolean sharded;
+
+    private final String owner;
+
+    private final AtomicReference<CompletableFuture<Outcome>> currentRun = new AtomicReference<>();
+
+    public IngestRunCoordinator(MusicTitleService titleService, IngestLeaseDao leaseDao, MeterRegistry meterRegistry,
+            ApplicationEventPublisher eventPublisher,
+            @Value("${playlists.ingest.lease-seconds:600}") long leaseSeconds,
+            @Value("${playlists.ingest.sharded:false}") boolean sharded) {
+        if (leaseSeconds < 3) {
+            throw new IllegalArgumentException("The ingest lease must last at least 3 seconds, but was " + leaseSeconds);
+        }
+        this.titleService = titleService;
+        this.leaseDao = leaseDao;
+        this.meterRegistry = meterRegistry;
+        this.eventPublisher = eventPublisher;
+        this.leaseDuration = Duration.ofSeconds(leaseSeconds);
+        this.sharded = sharded;
+        this.owner = LeaseOwners.newOwner();
+    }
+
+    /**
+     * Run the ingest on the calling thread, or join the run that is already in progress in this JVM
+     *
+     * @return the outcome of the run, completed exceptionally when the run failed
+     */
+    public CompletableFuture<Outcome> runOrJoin() {
+        var run = new CompletableFuture<Outcome>();
+        var inProgress = currentRun.compareAndExchange(null, run);
+        if (inProgress != null) {
+            LOGGER.info("An ingest run is already in progress; joining it");
+            return inProgress;
+        }
+        try {
+            run.complete(runExclusively());
+        } catch (RuntimeException e) {
+            run.completeExceptionally(e);
+        } finally {
+            currentRun.set(null);
+        }
+        return run;
+    }
+
+    /**
+     * Do work that writes chart data outside of the ingest runs, like filling an empty data store, while holding the
+     * ingest lease, so that it does not overlap with ingest runs or with other such work on any instance. The lease
+     * is renewed while the work is in progress, and the work is interrupted when the lease is lost.
+     *
+     * @param description a short name of the work, e.g. 'replay'; at most 12 characters, because it is part of the
+     *                    owner of the lease
+     * @param work        the work, done on the calling thread
+     * @return false when another owner holds the lease and the work was not done
+     */
+    public boolean runWithIngestLease(String description, Runnable work) {
+        if (description.length() > 12) {
+            throw new IllegalArgumentException("The description of the work is too long: " + description);
+        }
+        var workOwner = description + "/" + owner;
+        if (!leaseDao.acquire(INGEST_LEASE, workOwner, leaseDuration)) {
+            return false;
+        }
+        var heartbeat = new LeaseHeartbeat(description, leaseDuration,
+                () -> leaseDao.renew(INGEST_LEASE, workOwner, leaseDuration));
+        try (heartbeat) {
+            work.run();
+        } catch (RuntimeException e) {
+            if (heartbeat.isLost()) {
+                throw new IllegalStateException("Stopped the " + description + ", because the ingest lease was lost", e);
+            }
+            throw e;
+        } finally {
+            try {
+                leaseDao.release(INGEST_LEASE, workOwner);
+            } catch (DataAccessException e) {
+                // the lease expires by itself
+                LOGGER.warn("Could not release the ingest lease after the {}: {}", description, e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private Outcome runExclusively() {
+        if (sharded ? leaseDao.isHeld(INGEST_LEASE) : !leaseDao.acquire(INGEST_LEASE, owner, leaseDuration)) {
+            LOGGER.info("Another instance holds the ingest lease; skipping this run");
+            meterRegistry.counter("playlists.ingest.run.skipped").increment();
+            return Outcome.SKIPPED;
+        }
+        var startedAt = Instant.now();
+        var heartbeat = sharded ? null
+                : new LeaseHeartbeat("the ingest", leaseDuration, () -> leaseDao.renew(INGEST_LEASE, owner, leaseDuration));
+        var outcome = Outcome.FAILED;
+        String message = null;
+        try {
+            titleService.init();
+            outcome = Outcome.COMPLETED;
+            return outcome;
+        } catch (RuntimeException e) {
+            message = e.toString();
+            throw e;
+        } finally {
+            if (heartbeat != null) {
+                heartbeat.close();
+            }
+            var duration = Duration.between(startedAt, Instant.now());
+            Timer.builder("playlists.ingest.run").tag("outcome", outcome.name()).register(meterRegistry)
+                    .record(duration);
+            try {
+                leaseDao.recordRun(owner, startedAt, duration, outcome.name(), message);
+                if (!sharded) {
+                    leaseDao.release(INGEST_LEASE, owner);
+                }
+            } catch (DataAccessException e) {
+                // the lease expires by itself
+                LOGGER.warn("Could not record the ingest run or release the lease: {}", e.getMessage());
+            }
+            eventPublisher.publishEvent(new IngestRunFinished(outcome, duration));
+        }
+    }
+}
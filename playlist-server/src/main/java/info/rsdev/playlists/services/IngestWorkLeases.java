@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.WorkLeaseDao;
+import info.rsdev.playlists.exception.FailedHostException;
+
+/**
+ * Divides the ingest work between the instances that share a database, per year of a chart. An instance only ingests
+ * the years it holds the lease on, and renews the lease while it works. When it finishes a year, the year is marked
+ * done for the current run; when it fails, the lease is released so that another instance can take over. Years that
+ * are leased by another instance are tried again until they are done, so that the work of a crashed instance is
+ * picked up when its lease expires.
+ * <p>
+ * Sharding is disabled by default; the {@link IngestRunCoordinator} then makes sure that a single instance does all
+ * the work.
+ */
+@Component
+public class IngestWorkLeases {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestWorkLeases.class);
+
+    /**
+     * Ingests the year of a chart that this instance holds the lease on
+     */
+    @FunctionalInterface
+    public interface YearWork {
+        void ingest(short year) throws FailedHostException;
+    }
+
+    private final WorkLeaseDao workLeaseDao;
+
+    private final boolean enabled;
+
+    private final Duration leaseDuration;
+
+    private final String owner;
+
+    public IngestWorkLeases(WorkLeaseDao workLeaseDao, @Value("${playlists.ingest.sharded:false}") boolean enabled,
+            @Value("${playlists.ingest.lease-seconds:600}") long leaseSeconds) {
+        this.workLeaseDao = workLeaseDao;
+        this.enabled = enabled;
+        this.leaseDuration = Duration.ofSeconds(leaseSeconds);
+        this.owner = LeaseOwners.newOwner();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start a new ingest run
+     *
+     * @return the start of the run according to the database clock; work that is done after it, is not done again
+     */
+    public Instant startRun() {
+        return workLeaseDao.currentTime();
+    }
+
+    /**
+     * Ingest the given years of the chart that are not done by another instance since the start of the run
+     *
+     * @throws FailedHostException when the host failed to deliver a year; its lease is released
+     */
+    public void forEachClaimedYear(MusicChart chart, Collection<Short> years, Instant runStart, YearWork work)
+            throws FailedHostException {
+        List<Short> pending = new ArrayList<>(years);
+        while (!pending.isEmpty()) {
+            List<Short> leasedElsewhere = new ArrayList<>();
+            for (short year : pending) {
+                if (workLeaseDao.claim(chart, year, owner, leaseDuration, runStart)) {
+                    ingestClaimed(chart, year, work);
+                } else if (!workLeaseDao.isDone(chart, year, runStart)) {
+                    leasedElsewhere.add(year);
+                }
+            }
+            if (!leasedElsewhere.isEmpty()) {
+                LOGGER.info("{} years of {} are leased by other instances: {}; checking again later",
+                        leasedElsewhere.size(), chart, leasedElsewhere);
+                try {
+                    Thread.sleep(leaseDuration.dividedBy(3));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            pending = leasedElsewhere;
+        }
+    }
+
+    private void ingestClaimed(MusicChart chart, short year, YearWork work) {
+        var heartbeat = new LeaseHeartbeat(chart + " " + year, leaseDuration,
+                () -> workLeaseDao.renew(chart, year, owner, leaseDuration));
+        try (heartbeat) {
+            work.ingest(year);
+        } catch (RuntimeException e) {
+            workLeaseDao.release(chart, year, owner);
+            if (heartbeat.isLost()) {
+                throw new IllegalStateException("Stopped ingesting " + chart + " " + year + ", because its lease was "
+                        + "lost", e);
+            }
+            throw e;
+        }
+        // when the lease was lost after all, another owner holds it now and this does nothing
+        workLeaseDao.complete(chart, year, owner);
+    }
+}
@@ -1,43 +1,45 @@
 package info.rsdev.playlists.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
-import org.apache.http.HttpStatus;
-import org.jsoup.HttpStatusException;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import info.rsdev.playlists.exception.FailedHostException;
-
-public record InternetChartsFetcher(String location) implements DocumentFetcher {
-
-    private static final Logger LOGGER = LoggerFactory.getLogger(InternetChartsFetcher.class);
-
-    private static final String ABORT_MSG = "Website down? Abort scraping to prevent holes in the chart data.";
-    
-    private static final String USERAGENT_STRING = "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/117.0";
+/**
+ * Fetches a chart edition from the Internet via the shared {@link ChartPageClient}
+ *
+ * @param location   the url of the chart edition
+ * @param client     the client that downloads the page, or gets it from the archive
+ * @param revalidate true when a previously archived copy of the edition may be outdated
+ */
+public record InternetChartsFetcher(String location, ChartPageClient client, boolean revalidate) implements DocumentFetcher {
 
     @Override
     public Optional<Document> fetch() {
-        long start = System.currentTimeMillis();
+        return client.get(location, revalidate).map(this::parse);
+    }
+
+    /**
+     * The charts website serves its pages in UTF-8, so there is no need for the charset detection that jsoup performs
+     * when it parses a {@link Document}
+     */
+    @Override
+    public Optional<Reader> fetchSource() {
+        return client.get(location, revalidate)
+                .map(html -> new InputStreamReader(new ByteArrayInputStream(html), StandardCharsets.UTF_8));
+    }
+
+    private Document parse(byte[] html) {
         try {
-            return Optional.ofNullable(Jsoup.connect(location()).userAgent(USERAGENT_STRING).get());
-        } catch (HttpStatusException e) {
-            if (e.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
-                // we might query a non-existent week, e.g. week 53
-                LOGGER.error("Could not fetch data from {}: {}", location(), e.getMessage());
-                return Optional.empty();
-            }
-            throw new FailedHostException(ABORT_MSG, e);
+            return Jsoup.parse(new ByteArrayInputStream(html), null, location);
         } catch (IOException e) {
-            throw new FailedHostException(ABORT_MSG, e);
-        } finally {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Fetched {} in {} ms.", location(), System.currentTimeMillis() - start);
-            }
+            throw new UncheckedIOException(e);
         }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+
+/**
+ * Renews a lease on a virtual thread, every third of the lease duration, until it is closed. A renewal that fails
+ * because the database cannot be reached is retried until the lease is about to expire. When the lease is lost to
+ * another instance, or expires, the thread that created the heartbeat is interrupted, so that it stops the leased work
+ * before another instance takes it over.
+ */
+final class LeaseHeartbeat implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaseHeartbeat.class);
+
+    private final String description;
+
+    private final Duration leaseDuration;
+
+    private final Duration interval;
+
+    private final Duration retryInterval;
+
+    private final BooleanSupplier renewal;
+
+    private final Thread worker;
+
+    private final Thread thread;
+
+    private boolean closed;
+
+    private boolean lost;
+
+    /**
+     * Start renewing a lease that was just taken; the leased work must be done by the calling thread
+     *
+     * @param description what the lease is for, used for logging only
+     * @param renewal     renews the lease, returns false when the lease was lost
+     */
+    LeaseHeartbeat(String description, Duration leaseDuration, BooleanSupplier renewal) {
+        this.description = description;
+        this.leaseDuration = leaseDuration;
+        this.interval = leaseDuration.dividedBy(3);
+        this.retryInterval = interval.dividedBy(10);
+        this.renewal = renewal;
+        this.worker = Thread.currentThread();
+        this.thread = Thread.ofVirtual().name("lease-heartbeat").start(this::beat);
+    }
+
+    private void beat() {
+        // measured before every renewal, so that the lease never expires earlier than we think
+        long expiresAt = System.nanoTime() + leaseDuration.toNanos();
+        var wait = interval;
+        try {
+            while (true) {
+                Thread.sleep(wait);
+                long renewedAt = System.nanoTime();
+                try {
+                    if (!renewal.getAsBoolean()) {
+                        cancelWork("was lost to another instance");
+                        return;
+                    }
+                    expiresAt = renewedAt + leaseDuration.toNanos();
+                    wait = interval;
+                } catch (DataAccessException e) {
+                    if (expiresAt - System.nanoTime() <= retryInterval.toNanos()) {
+                        cancelWork("expires, because it could not be renewed (" + e.getMessage() + ")");
+                        return;
+                    }
+                    LOGGER.warn("Could not renew the lease on {}, retrying: {}", description, e.getMessage());
+                    wait = retryInterval;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the lease is no longer needed
+        }
+    }
+
+    private synchronized void cancelWork(String reason) {
+        if (!closed) {
+            LOGGER.warn("The lease on {} {}; stopping the work on it", description, reason);
+            lost = true;
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * @return true when the lease was lost or expired before the heartbeat was closed, and the work was interrupted
+     */
+    synchronized boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * Stop renewing the lease. Must be called by the thread that does the leased work; when the work was interrupted
+     * because the lease was lost, the interrupt is cleared, so that the caller can clean up.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (lost) {
+                Thread.interrupted();
+            }
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * Names the owners of leases. The name of the JVM, 'pid@hostname', tells where a lease is held; a random part makes
+ * the owner unique. The owner column of the lease tables is 100 characters wide, so the name of the JVM is cut short,
+ * leaving room for a short prefix like 'replay/'.
+ */
+final class LeaseOwners {
+
+    private static final int MAX_JVM_NAME_LENGTH = 50;
+
+    private LeaseOwners() {
+        // do not instantiate this utility
+    }
+
+    /**
+     * @return a new owner name of at most 87 characters
+     */
+    static String newOwner() {
+        var jvmName = ManagementFactory.getRuntimeMXBean().getName();
+        if (jvmName.length() > MAX_JVM_NAME_LENGTH) {
+            jvmName = jvmName.substring(0, MAX_JVM_NAME_LENGTH);
+        }
+        return jvmName + "/" + UUID.randomUUID();
+    }
+}
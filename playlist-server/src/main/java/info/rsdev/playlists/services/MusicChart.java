@@ -15,14 +15,18 @@
  */
 package info.rsdev.playlists.services;
 
+import java.util.Optional;
+
 /**
  * An enumeration of music charts that is understood by this software
  */
 public enum MusicChart {
 
-    TOP40("Top 40", (short)1965, (byte)1),
+    TOP40((byte)1, "Top 40", (short)1965, (byte)1),
+
+    TIPPARADE((byte)2, "Tipparade", (short)1967, (byte)28);
 
-    TIPPARADE("Tipparade", (short)1967, (byte)28);
+    private final byte id;
 
     private final String chartName;
 
@@ -30,12 +34,20 @@ public enum MusicChart {
 
     private final byte weekStarted;
 
-    MusicChart(String chartName, short yearStarted, byte weekStarted) {
+    MusicChart(byte id, String chartName, short yearStarted, byte weekStarted) {
+        this.id = id;
         this.chartName = chartName;
         this.yearStarted = yearStarted;
         this.weekStarted = weekStarted;
     }
 
+    /**
+     * The compact identification of the chart in the data store; it must never change once data is stored
+     */
+    public byte id() {
+        return this.id;
+    }
+
     public short yearStarted() {
         return this.yearStarted;
     }
@@ -48,4 +60,33 @@ public enum MusicChart {
         return this.chartName;
     }
 
+    /**
+     * Find the chart by the name that is stored with the chart items
+     *
+     * @param chartName the name of the chart, e.g. 'Top 40'
+     * @return the chart with the given name, or an empty optional when the name is unknown
+     */
+    public static Optional<MusicChart> fromChartName(String chartName) {
+        for (MusicChart chart : values()) {
+            if (chart.chartName.equals(chartName)) {
+                return Optional.of(chart);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Find the chart by its {@link #id()}
+     *
+     * @return the chart with the given id, or an empty optional when the id is unknown
+     */
+    public static Optional<MusicChart> fromId(byte id) {
+        for (MusicChart chart : values()) {
+            if (chart.id == id) {
+                return Optional.of(chart);
+            }
+        }
+        return Optional.empty();
+    }
+
 }
@@ -15,10 +15,15 @@
  */
 package info.rsdev.playlists.services;
 
+import java.time.Instant;
 import java.time.LocalDate;
-import java.time.temporal.ChronoField;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,9 +46,26 @@ public class MusicChartsService implements MusicTitleService {
 
     private final ChartsItemDao chartsItemDao;
 
-    public MusicChartsService(ScrapeService scrapeService, ChartsItemDao chartsItemDao) {
+    private final ChartsIngestPipeline ingestPipeline;
+
+    private final ChartPageClient pageClient;
+
+    private final IngestPlanner ingestPlanner;
+
+    private final EditionCalendar editionCalendar;
+
+    private final IngestWorkLeases workLeases;
+
+    public MusicChartsService(ScrapeService scrapeService, ChartsItemDao chartsItemDao,
+            ChartsIngestPipeline ingestPipeline, ChartPageClient pageClient, IngestPlanner ingestPlanner,
+            EditionCalendar editionCalendar, IngestWorkLeases workLeases) {
         this.scrapeService = scrapeService;
         this.chartsItemDao = chartsItemDao;
+        this.ingestPipeline = ingestPipeline;
+        this.pageClient = pageClient;
+        this.ingestPlanner = ingestPlanner;
+        this.editionCalendar = editionCalendar;
+        this.workLeases = workLeases;
     }
 
     @Override
@@ -52,19 +74,21 @@ public class MusicChartsService implements MusicTitleService {
             LOGGER.info("New datastore created succesfully");
         }
 
-        for (MusicChart chart : MusicChart.values()) {
-            var maxYear = chartsItemDao.getHighestYearStored(chart);
-            if (maxYear >= 0) {
-                var maxWeek = chartsItemDao.getHighestWeekStored(chart, maxYear);
-                LOGGER.warn("Datastore contains data for {} from {}, week {}", chart, maxYear, maxWeek);
-            }
-        }
+        // other instances may have stored chart items since the previous run
+        chartsItemDao.invalidateWatermarks();
+        chartsItemDao.getWatermarks().forEach((chart, watermark) -> LOGGER.warn("Datastore contains data for {} "
+                + "from {}, week {}", chart, watermark.year(), watermark.weekNumber()));
         loadData();
+        if (!workLeases.isEnabled() && chartsItemDao instanceof Initializable init) {
+            // the run holds the ingest lease, so no other instance writes chart items; sharded runs do not hold it
+            init.compactStore();
+        }
     }
 
     @Override
-    public List<Song> getChartedSongsForYear(short year) {
-        return new ArrayList<>(chartsItemDao.getReleases(year));
+    public List<Song> getChartedSongsForYear(short year, Set<MusicChart> charts) {
+        var releases = chartsItemDao.getReleases(year, charts);
+        return releases instanceof List<Song> list ? list : new ArrayList<>(releases);
     }
 
     /**
@@ -72,51 +96,71 @@ public class MusicChartsService implements MusicTitleService {
      * charts by retrieving them from the Internet via the {@link ScrapeService}
      */
     private void loadData() {
-        short currentYear = (short) LocalDate.now().getYear();
+        var today = LocalDate.now();
+        // when the work is shared, the run must start before the coverage is read: work done after it is not redone
+        var runStart = workLeases.isEnabled() ? workLeases.startRun() : null;
+        var coverage = chartsItemDao.getEditionCoverage();
+        editionCalendar.refresh();
+        pageClient.startRun();
         for (MusicChart chart : scrapeService.getSupportedCharts()) {
             try {
-                for (short year = getFirstYearToScrape(chart); year <= currentYear; year++) {
-                    for (byte weekNumber = firstWeek(chart, year); weekNumber <= lastWeek(currentYear, year); weekNumber++) {
-                        long start = System.currentTimeMillis();
-                        var chartsItems = scrapeService.scrape(newInternetDocumentFetcher(chart, year, weekNumber));
-                        if (!chartsItems.isEmpty()) {
-                            long scrapeMillies = System.currentTimeMillis() - start;
-                            chartsItemDao.insert(chartsItems);
-                            long dbMillies = System.currentTimeMillis() - start - scrapeMillies;
-                            LOGGER.info("persisted week {} of {} {} ({} songs [ scrape={}ms., db={}ms.])", weekNumber, chart, year,
-                                    chartsItems.size(), scrapeMillies, dbMillies);
-                        }
-                    }
+                var missingEditions = ingestPlanner.getMissingEditions(chart, coverage, editionCalendar, today);
+                if (workLeases.isEnabled()) {
+                    loadLeasedYears(chart, missingEditions, runStart, today);
+                } else {
+                    loadChart(chart, missingEditions, today);
                 }
             } catch (FailedHostException e) {
                 LOGGER.error("Exception during scraping", e);
-                // We do not want holes in our charts, because at present we have no means to
-                // detect and fix them, therefore move on with next chart.
+                // Editions that are still missing are scheduled again with the next run, so move on with next chart.
             }
         }
     }
 
-    private short getFirstYearToScrape(MusicChart chart) {
-        var highestYearStoredCharts = chartsItemDao.getHighestYearStored(chart);
-        return highestYearStoredCharts >= 0 ? highestYearStoredCharts : chart.yearStarted();
+    /**
+     * Scrape and persist the missing editions of the years of a chart that this instance gets the lease on. The
+     * coverage of a leased year is read again, because another instance may have ingested part of it in the meantime.
+     */
+    private void loadLeasedYears(MusicChart chart, List<ChartEdition> missingEditions, Instant runStart,
+            LocalDate today) {
+        var years = missingEditions.stream().map(ChartEdition::year).collect(Collectors.toCollection(TreeSet::new));
+        workLeases.forEachClaimedYear(chart, years, runStart, year -> {
+            var yearCoverage = chartsItemDao.getEditionCoverage(chart, year);
+            var missingOfYear = ingestPlanner.getMissingEditions(chart, yearCoverage, editionCalendar, today).stream()
+                    .filter(edition -> edition.year() == year)
+                    .toList();
+            loadChart(chart, missingOfYear, today);
+        });
     }
 
-    private byte firstWeek(MusicChart chart, short year) {
-        var highestWeekStoredForYear = chartsItemDao.getHighestWeekStored(chart, year);
-        if (highestWeekStoredForYear >= 0) {
-            // We don't want to re-scrape and store the latest week already scraped
-            return (byte) (highestWeekStoredForYear + 1);
+    /**
+     * Scrape and persist the missing editions of a single chart through the {@link ChartsIngestPipeline}
+     */
+    private void loadChart(MusicChart chart, List<ChartEdition> missingEditions, LocalDate today) {
+        LOGGER.info("{} editions of {} are missing", missingEditions.size(), chart);
+        Map<DocumentFetcher, ChartEdition> editions = new LinkedHashMap<>();
+        for (ChartEdition edition : missingEditions) {
+            editions.put(newInternetDocumentFetcher(edition, edition.year() == today.getYear()), edition);
         }
-        return chart.yearStarted() == year ? chart.weekStarted() : 1;
-    }
-
-    private byte lastWeek(short currentYear, short yearProcessing) {
-        return currentYear == yearProcessing ? (byte) LocalDate.now().get(ChronoField.ALIGNED_WEEK_OF_YEAR) : 53;
+        ingestPipeline.run(chart.chartName(), List.copyOf(editions.keySet()), new ChartsIngestPipeline.Listener() {
+            @Override
+            public void editionAbsent(DocumentFetcher fetcher) {
+                if (editionCalendar.markAbsent(editions.get(fetcher), today)) {
+                    LOGGER.info("Edition {} is not published", editions.get(fetcher));
+                }
+            }
+        });
     }
 
-    private DocumentFetcher newInternetDocumentFetcher(MusicChart chart, short year, byte weekNumber) {
+    /**
+     * Historic editions never change, so only editions from the current year need revalidation when they are
+     * present in the archive already
+     */
+    private DocumentFetcher newInternetDocumentFetcher(ChartEdition edition, boolean revalidate) {
+        var chart = edition.chart();
         var urlTemplate = scrapeService.getUrlTemplate(chart)
                 .orElseThrow(() -> new IllegalStateException(scrapeService + " does not support chart " + chart));
-        return new InternetChartsFetcher(String.format(urlTemplate, chart, year, weekNumber));
+        return new InternetChartsFetcher(String.format(urlTemplate, chart, edition.year(), edition.weekNumber()),
+                pageClient, revalidate);
     }
 }
@@ -17,7 +17,9 @@ package info.rsdev.playlists.services;
 
 import info.rsdev.playlists.domain.Song;
 
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This interface defines the methods to initialize and interact with a persistence store containing {@link Song songs}
@@ -26,5 +28,12 @@ public interface MusicTitleService {
 
     void init();
 
-    List<Song> getChartedSongsForYear(short year);
+    default List<Song> getChartedSongsForYear(short year) {
+        return getChartedSongsForYear(year, EnumSet.allOf(MusicChart.class));
+    }
+
+    /**
+     * Get the songs that entered one of the given {@link MusicChart charts} in the given year
+     */
+    List<Song> getChartedSongsForYear(short year, Set<MusicChart> charts);
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A local archive of the raw html of fetched chart pages. Pages are stored gzip compressed under the SHA-256 hash of
+ * their url, together with a small properties file holding the validators (ETag and Last-Modified) that the server
+ * returned, so that the page can be revalidated with a conditional GET. The archive is disabled when no directory is
+ * configured.
+ */
+@Component
+public class PageArchive {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageArchive.class);
+
+    static final String PAGE_SUFFIX = ".html.gz";
+    private static final String META_SUFFIX = ".properties";
+
+    private static final String URL = "url";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private final Path archiveDir;
+
+    public PageArchive(@Value("${playlists.archive.dir:}") String archiveDir) {
+        this.archiveDir = archiveDir.isBlank() ? null : Path.of(archiveDir);
+    }
+
+    public boolean isEnabled() {
+        return archiveDir != null;
+    }
+
+    /**
+     * Get the archived page for the given url
+     *
+     * @param url the location the page was fetched from
+     * @return the archived page, or an empty optional when the page is not in the archive
+     */
+    public Optional<ArchivedPage> get(String url) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        var page = pathOf(url, PAGE_SUFFIX);
+        if (!Files.isRegularFile(page)) {
+            return Optional.empty();
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(page))) {
+            var metadata = new Properties();
+            var meta = pathOf(url, META_SUFFIX);
+            if (Files.isRegularFile(meta)) {
+                try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+                    metadata.load(reader);
+                }
+            }
+            return Optional.of(new ArchivedPage(url, in.readAllBytes(), metadata.getProperty(ETAG),
+                    metadata.getProperty(LAST_MODIFIED)));
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring unreadable archived page for {}: {}", url, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Store the page in the archive, replacing a previous version of it. Failure to write the archive is logged, but
+     * does not interrupt the caller, since the archive is only an optimization.
+     */
+    public void put(ArchivedPage page) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            var pagePath = pathOf(page.url(), PAGE_SUFFIX);
+            Files.createDirectories(pagePath.getParent());
+
+            var metadata = new Properties();
+            metadata.setProperty(URL, page.url());
+            if (page.etag() != null) {
+                metadata.setProperty(ETAG, page.etag());
+            }
+            if (page.lastModified() != null) {
+                metadata.setProperty(LAST_MODIFIED, page.lastModified());
+            }
+            var metaTemp = Files.createTempFile(pagePath.getParent(), "meta", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(metaTemp, StandardCharsets.UTF_8)) {
+                metadata.store(writer, null);
+            }
+            var pageTemp = Files.createTempFile(pagePath.getParent(), "page", ".tmp");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(pageTemp))) {
+                out.write(page.html());
+            }
+            Files.move(metaTemp, pathOf(page.url(), META_SUFFIX), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(pageTemp, pagePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Could not archive page {}: {}", page.url(), e.getMessage());
+        }
+    }
+
+    /**
+     * Get the url of a page file in an archive directory, from the metadata that is stored next to it
+     *
+     * @param pageFile a file with the name that the archive gives to a page
+     * @return the url that the page was fetched from, or an empty optional when there is no readable metadata
+     */
+    public static Optional<String> urlOf(Path pageFile) {
+        var fileName = pageFile.getFileName().toString();
+        if (!fileName.endsWith(PAGE_SUFFIX)) {
+            return Optional.empty();
+        }
+        var meta = pageFile.resolveSibling(fileName.substring(0, fileName.length() - PAGE_SUFFIX.length()) + META_SUFFIX);
+        if (!Files.isRegularFile(meta)) {
+            return Optional.empty();
+        }
+        var metadata = new Properties();
+        try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+            metadata.load(reader);
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring unreadable metadata {}: {}", meta, e.getMessage());
+            return Optional.empty();
+        }
+        return Optional.ofNullable(metadata.getProperty(URL));
+    }
+
+    private Path pathOf(String url, String suffix) {
+        var key = sha256(url);
+        // spread the files over subdirectories, to keep directory listings small
+        return archiveDir.resolve(key.substring(0, 2)).resolve(key + suffix);
+    }
+
+    private static String sha256(String value) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The raw html of a page, with the validators the server returned for it (both may be null)
+     */
+    public record ArchivedPage(String url, byte[] html, String etag, String lastModified) {
+    }
+}
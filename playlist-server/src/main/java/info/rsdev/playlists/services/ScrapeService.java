@@ -33,11 +33,35 @@ public interface ScrapeService {
      * [ChartsItem]s
      * 
      * @param fetcher the [DocumentFetcher] pointing at a html source
-     * @return the [ChartsItem]s that are listed in the html
+     * @return the [ChartsItem]s that are listed in the html, or no [ChartsItem]s when the page does not exist
      * @throws FailedHostException When host to scrape is not operating correctly or
      *                             is unreachable
      */
-    List<ChartsItem> scrape(DocumentFetcher fetcher) throws FailedHostException;
+    default List<ChartsItem> scrape(DocumentFetcher fetcher) throws FailedHostException {
+        return scrapeEdition(fetcher).orElse(Collections.emptyList());
+    }
+
+    /**
+     * Like {@link #scrape(DocumentFetcher)}, but tells a page that does not exist apart from a page without
+     * recognizable [ChartsItem]s, e.g. because the layout of the page changed
+     *
+     * @param fetcher the [DocumentFetcher] pointing at a html source
+     * @return the [ChartsItem]s that are listed in the html, possibly none, or an empty optional when the
+     *         [DocumentFetcher] reports that the page does not exist
+     * @throws FailedHostException When host to scrape is not operating correctly or
+     *                             is unreachable
+     */
+    Optional<List<ChartsItem>> scrapeEdition(DocumentFetcher fetcher) throws FailedHostException;
 
     Optional<String> getUrlTemplate(MusicChart chart);
+
+    /**
+     * Tell which chart edition the page at the given location holds, from the location alone
+     *
+     * @param location the url of the page, or the path of a copy of it that is stored under the path of its url
+     * @return the edition, or an empty optional when the location does not follow the url template
+     */
+    default Optional<ChartEdition> getEdition(String location) {
+        return Optional.empty();
+    }
 }
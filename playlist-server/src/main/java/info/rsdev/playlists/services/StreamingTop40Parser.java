@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.Song;
+
+/**
+ * Extracts the {@link ChartsItem}s from a chart page in a single streaming pass, as an alternative for the DOM based
+ * parsing in {@link Top40ScrapeService}. The selectors are compiled once and every element is dropped from the tree
+ * as soon as it has been inspected, so the complete document tree is never built.
+ */
+class StreamingTop40Parser {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingTop40Parser.class);
+
+    private static final String ITEM_CONTAINER_CLASS = "top40-list__item__container";
+
+    private static final Evaluator TITLE = QueryParser.parse("head > title");
+    private static final Evaluator LIST_ITEM = QueryParser.parse(Top40ScrapeService.LIST_ITEM_QUERY);
+    private static final Evaluator SONG_TITLE = QueryParser.parse(Top40ScrapeService.SONG_TITLE_QUERY);
+    private static final Evaluator ARTIST = QueryParser.parse(Top40ScrapeService.ARTIST_QUERY);
+    private static final Evaluator POSITION = QueryParser.parse(Top40ScrapeService.POSITION_QUERY);
+    private static final Evaluator WEEKS_LISTED = QueryParser.parse(Top40ScrapeService.WEEKS_LISTED_QUERY);
+
+    /**
+     * Parse the chart page that is read from the given source. The source is closed afterwards.
+     *
+     * @return the chart items in the order of the page, without fixing the positions
+     * @throws IOException when the source can not be read
+     */
+    List<ChartsItem> parse(Reader source, String location) throws IOException {
+        List<ChartsItem> chartItems = new ArrayList<>(40);
+        Edition edition = null;
+        try (source; var parser = new StreamParser(Parser.htmlParser()).parse(source, location)) {
+            var elements = parser.iterator();
+            while (elements.hasNext()) {
+                var element = elements.next();
+                if (element.hasClass(ITEM_CONTAINER_CLASS) && element.is(LIST_ITEM)) {
+                    if (edition == null) {
+                        throw new IllegalStateException("Chart items found before the title of " + location);
+                    }
+                    addChartsItem(chartItems, element, edition);
+                } else if (edition == null && element.is(TITLE)) {
+                    var title = element.text();
+                    edition = new Edition(Top40ScrapeService.getChartName(title), Top40ScrapeService.getYearOfChart(title),
+                            Top40ScrapeService.getWeekOfChart(title));
+                } else if (isInsideListItem(element)) {
+                    // keep the content of a list item until the list item itself has been parsed
+                    continue;
+                }
+                element.remove();
+            }
+        }
+        return chartItems;
+    }
+
+    private void addChartsItem(List<ChartsItem> chartItems, Element itemElement, Edition edition) {
+        try {
+            var songTitle = itemElement.selectFirst(SONG_TITLE).text();
+            var artist = itemElement.selectFirst(ARTIST).text();
+            var position = Byte.parseByte(itemElement.selectFirst(POSITION).text());
+            var isNewInChart = itemElement.selectFirst(WEEKS_LISTED).text().equals("1");
+            chartItems.add(new ChartsItem(edition.chartName(), edition.year(), edition.weekNumber(), position,
+                    isNewInChart, new Song(artist, songTitle)));
+        } catch (RuntimeException e) {
+            LOGGER.error(String.format("Error context [%d]:%n%s", chartItems.size(), itemElement), e);
+        }
+    }
+
+    private boolean isInsideListItem(Element element) {
+        for (var parent = element.parent(); parent != null; parent = parent.parent()) {
+            if (parent.hasClass(ITEM_CONTAINER_CLASS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private record Edition(String chartName, short year, byte weekNumber) {
+    }
+}
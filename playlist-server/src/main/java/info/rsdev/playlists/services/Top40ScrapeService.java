@@ -18,6 +18,9 @@ package info.rsdev.playlists.services;
 import static info.rsdev.playlists.services.MusicChart.TIPPARADE;
 import static info.rsdev.playlists.services.MusicChart.TOP40;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -28,6 +31,8 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import info.rsdev.playlists.domain.ChartsItem;
@@ -46,20 +51,58 @@ public class Top40ScrapeService implements ScrapeService {
      */
     private static final String URL_TEMPLATE = "https://www.top40.nl/%s/%d/week-%d";
 
+    /* The chart, year and week at the end of a url that follows the URL_TEMPLATE, or of a saved copy of it */
+    private static final Pattern EDITION_PATTERN = Pattern.compile("(?:^|/)([^/]+)/(\\d{4})/week-(\\d{1,2})(?:\\.html)?(?:\\.gz)?$");
+
     private static final Pattern WEEKNUMBER_PATTERN = Pattern.compile(".*week (\\d\\d?), .*");
 
+    /* The css queries that locate the chart information in the page; shared with the StreamingTop40Parser */
+    static final String LIST_ITEM_QUERY = "div.list__list > div:not(.no-longer-listed) div.top40-list__item__container";
+    static final String SONG_TITLE_QUERY = "h2.h3";
+    static final String ARTIST_QUERY = "h3.p";
+    static final String POSITION_QUERY = "div.number-block > span";
+    static final String WEEKS_LISTED_QUERY = "div.top40-list__item__controls--weeks > span.h5";
+
+    /* When not null, pages are parsed in a single streaming pass instead of into a complete Document */
+    private final StreamingTop40Parser streamingParser;
+
+    public Top40ScrapeService() {
+        this(false);
+    }
+
+    @Autowired
+    public Top40ScrapeService(@Value("${playlists.scrape.streaming-parser:false}") boolean useStreamingParser) {
+        this.streamingParser = useStreamingParser ? new StreamingTop40Parser() : null;
+    }
+
     @Override
     public List<MusicChart> getSupportedCharts() {
         return Collections.unmodifiableList(SUPPORTED_CHARTS);
     }
 
     @Override
-    public List<ChartsItem> scrape(DocumentFetcher fetcher) {
-        return fetcher.fetch().map(this::getChartsItems).orElse(Collections.emptyList());
+    public Optional<List<ChartsItem>> scrapeEdition(DocumentFetcher fetcher) {
+        if (streamingParser != null) {
+            return fetcher.fetchSource().map(source -> parseStreaming(source, fetcher.location()));
+        }
+        return fetcher.fetch().map(this::getChartsItems);
+    }
+
+    private List<ChartsItem> parseStreaming(Reader source, String location) {
+        try {
+            var chartItems = fixPositionsIfRankingIsInvalid(streamingParser.parse(source, location));
+            if (!chartItems.isEmpty()) {
+                var first = chartItems.get(0);
+                logScraped(chartItems, first.chartName(), first.year(), first.weekNumber());
+            }
+            return chartItems;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private List<ChartsItem> getChartsItems(Document top40Page) {
-        var listItems = top40Page.select("div.list__list > div:not(.no-longer-listed) div.top40-list__item__container");
+        var listItems = top40Page.select(LIST_ITEM_QUERY);
         List<ChartsItem> chartItems = new ArrayList<>(listItems.size());
 
         var chartName = getChartName(top40Page);
@@ -76,16 +119,22 @@ public class Top40ScrapeService implements ScrapeService {
         }
 
         chartItems = fixPositionsIfRankingIsInvalid(chartItems);
+        logScraped(chartItems, chartName, year, weekNumber);
+        return chartItems;
+    }
 
+    private void logScraped(List<ChartsItem> chartItems, String chartName, short year, byte weekNumber) {
         LOGGER.info("Scraped week {} of {} {}", weekNumber, chartName, year);
         if (LOGGER.isDebugEnabled()) {
             chartItems.forEach(item -> LOGGER.debug(item.toString()));
         }
-        return chartItems;
     }
 
     byte getWeekOfChart(Document top40Page) {
-        var title = top40Page.title();
+        return getWeekOfChart(top40Page.title());
+    }
+
+    static byte getWeekOfChart(String title) {
         var matcher = WEEKNUMBER_PATTERN.matcher(title);
         if (matcher.find()) {
             return Byte.parseByte(matcher.group(1));
@@ -94,13 +143,19 @@ public class Top40ScrapeService implements ScrapeService {
     }
 
     short getYearOfChart(Document top40Page) {
+        return getYearOfChart(top40Page.title());
+    }
+
+    static short getYearOfChart(String title) {
         // the page title ends with the 4 digit year
-        var title = top40Page.title();
         return Short.parseShort(title.substring(title.length() - 4));
     }
 
     String getChartName(Document top40Page) {
-        var title = top40Page.title();
+        return getChartName(top40Page.title());
+    }
+
+    static String getChartName(String title) {
         var index = title.indexOf("-lijst");
         if (index > 0) {
             return title.substring(0, index);
@@ -109,15 +164,15 @@ public class Top40ScrapeService implements ScrapeService {
     }
 
     private ChartsItem getChartsItem(Element itemElement, String chartName, short year, byte weekNumber) {
-        var songTitle = itemElement.selectFirst("h2.h3").text();
-        var artist = itemElement.selectFirst("h3.p").text();
-        var position = Byte.parseByte(itemElement.selectFirst("div.number-block > span").text());
+        var songTitle = itemElement.selectFirst(SONG_TITLE_QUERY).text();
+        var artist = itemElement.selectFirst(ARTIST_QUERY).text();
+        var position = Byte.parseByte(itemElement.selectFirst(POSITION_QUERY).text());
         var isNewInChart = isNewInChart(itemElement);
         return new ChartsItem(chartName, year, weekNumber, position, isNewInChart, new Song(artist, songTitle));
     }
 
     private boolean isNewInChart(Element itemElement) {
-        var weeksListed = itemElement.selectFirst("div.top40-list__item__controls--weeks > span.h5");
+        var weeksListed = itemElement.selectFirst(WEEKS_LISTED_QUERY);
         // get the 'number of weeks in charts' item
         return weeksListed.text().equals("1");
     }
@@ -157,4 +212,16 @@ public class Top40ScrapeService implements ScrapeService {
     public Optional<String> getUrlTemplate(MusicChart chart) {
         return SUPPORTED_CHARTS.contains(chart) ? Optional.of(URL_TEMPLATE) : Optional.empty();
     }
+
+    @Override
+    public Optional<ChartEdition> getEdition(String location) {
+        var matcher = EDITION_PATTERN.matcher(location.replace('\\', '/'));
+        if (!matcher.find()) {
+            return Optional.empty();
+        }
+        // the url template is filled in with the name of the MusicChart constant
+        return SUPPORTED_CHARTS.stream().filter(chart -> chart.name().equals(matcher.group(1))).findFirst()
+                .map(chart -> new ChartEdition(chart, Short.parseShort(matcher.group(2)),
+                        Byte.parseByte(matcher.group(3))));
+    }
 }
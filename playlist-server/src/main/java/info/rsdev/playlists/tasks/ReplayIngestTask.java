@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.tasks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.ChartsItemDao;
+import info.rsdev.playlists.dao.Initializable;
+import info.rsdev.playlists.services.ChartEdition;
+import info.rsdev.playlists.services.ChartsIngestPipeline;
+import info.rsdev.playlists.services.FileDocumentFetcher;
+import info.rsdev.playlists.services.IngestRunCoordinator;
+import info.rsdev.playlists.services.PageArchive;
+import info.rsdev.playlists.services.ScrapeService;
+
+/**
+ * Fill an empty data store at application startup with the chart editions from a directory of saved html pages,
+ * e.g. the page archive, instead of crawling the website. The directory is scanned recursively for files ending with
+ * '.html' or '.html.gz'. This task only runs when the property 'playlists.replay.dir' is set.
+ * <p>
+ * The editions are replayed in the order of chart, year and week, like a live ingest, so that a failure leaves no
+ * holes behind. The edition of a file is told by the url in the metadata that the page archive stores next to it, or
+ * else by the path of the file, which must then end with the chart, year and week of the url, e.g.
+ * 'TOP40/1965/week-1.html'. The ingest lease is held while replaying, so that no ingest run or seed load writes at
+ * the same time; this task runs before the {@link SeedLoadTask}, which finds the data store filled afterwards.
+ */
+@Component
+@Order(1)
+@ConditionalOnProperty("playlists.replay.dir")
+public class ReplayIngestTask implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayIngestTask.class);
+
+    private final ChartsIngestPipeline ingestPipeline;
+
+    private final ChartsItemDao chartsItemDao;
+
+    private final ScrapeService scrapeService;
+
+    private final IngestRunCoordinator runCoordinator;
+
+    private final Path replayDir;
+
+    private final int writeBatchSize;
+
+    public ReplayIngestTask(ChartsIngestPipeline ingestPipeline, ChartsItemDao chartsItemDao,
+            ScrapeService scrapeService, IngestRunCoordinator runCoordinator,
+            @Value("${playlists.replay.dir}") Path replayDir,
+            @Value("${playlists.replay.write-batch-size:4000}") int writeBatchSize) {
+        this.ingestPipeline = ingestPipeline;
+        this.chartsItemDao = chartsItemDao;
+        this.scrapeService = scrapeService;
+        this.runCoordinator = runCoordinator;
+        this.replayDir = replayDir;
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (chartsItemDao instanceof Initializable init && init.setupStoreWhenNeeded()) {
+            LOGGER.info("New datastore created succesfully");
+        }
+        var editions = findEditions();
+        if (!runCoordinator.runWithIngestLease("replay", () -> replay(editions))) {
+            LOGGER.info("Not replaying {}: another instance is writing chart data", replayDir);
+        }
+    }
+
+    private Map<ChartEdition, FileDocumentFetcher> findEditions() throws IOException {
+        Map<ChartEdition, FileDocumentFetcher> editions = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(replayDir)) {
+            var pages = files.filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().matches(".*\\.html(\\.gz)?"))
+                    .toList();
+            for (Path page : pages) {
+                var edition = editionOf(page);
+                if (edition.isEmpty()) {
+                    LOGGER.warn("Not replaying {}: the chart edition of it is unknown", page);
+                } else if (editions.putIfAbsent(edition.get(), new FileDocumentFetcher(page)) != null) {
+                    LOGGER.warn("Not replaying {}: {} is replayed from {}", page, edition.get(),
+                            editions.get(edition.get()).location());
+                }
+            }
+        }
+        return editions;
+    }
+
+    private Optional<ChartEdition> editionOf(Path page) {
+        return PageArchive.urlOf(page).flatMap(scrapeService::getEdition)
+                .or(() -> scrapeService.getEdition(replayDir.relativize(page).toString()));
+    }
+
+    private void replay(Map<ChartEdition, FileDocumentFetcher> editions) {
+        chartsItemDao.invalidateWatermarks();
+        var stored = chartsItemDao.getWatermarks().keySet();
+        if (!stored.isEmpty()) {
+            // replaying editions that are already stored would violate the uniqueness of the ranking
+            LOGGER.error("Not replaying {}: the datastore already contains data for {}", replayDir, stored);
+            return;
+        }
+        LOGGER.info("Replaying {} chart editions from {}", editions.size(), replayDir);
+        var startTime = System.currentTimeMillis();
+        ingestPipeline.run(replayDir.toString(), new ArrayList<>(editions.values()), writeBatchSize);
+        LOGGER.info("Replayed {} chart editions after {}s", editions.size(), (System.currentTimeMillis() - startTime) / 1000);
+    }
+}
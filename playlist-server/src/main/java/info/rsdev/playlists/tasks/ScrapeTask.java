@@ -20,7 +20,7 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import info.rsdev.playlists.Playlists;
-import info.rsdev.playlists.services.MusicTitleService;
+import info.rsdev.playlists.services.IngestRunCoordinator;
 import jakarta.annotation.Resource;
 
 @Component
@@ -29,15 +29,15 @@ public class ScrapeTask {
     private static final Logger LOGGER = LoggerFactory.getLogger(Playlists.class);
     
     @Resource
-    private MusicTitleService titleService;
+    private IngestRunCoordinator ingestRunCoordinator;
     
-    @Scheduled(cron = "* 0 22 * * Thu")
+    @Scheduled(cron = "0 0 22 * * THU")
 //    @Scheduled(fixedRate = 5, timeUnit = TimeUnit.MINUTES)
     public void scrapeCharts() throws Exception {
         LOGGER.info("Running scheduled task to scrape music charts");
         var startTime = System.currentTimeMillis();
-        titleService.init();
-        LOGGER.info("Music charts scraped after {}s", (System.currentTimeMillis() - startTime) / 1000);
+        var outcome = ingestRunCoordinator.runOrJoin().join();
+        LOGGER.info("Music charts scrape {} after {}s", outcome, (System.currentTimeMillis() - startTime) / 1000);
     }
 
 }
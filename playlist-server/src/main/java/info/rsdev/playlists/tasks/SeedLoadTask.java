@@ -0,0 +1,139 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.tasks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.ChartsItemDao;
+import info.rsdev.playlists.dao.Initializable;
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.services.ChartsItemCsvReader;
+import info.rsdev.playlists.services.IngestRunCoordinator;
+
+/**
+ * Fill an empty data store with the pre-scraped chart items from the seed file, so that a fresh environment does not
+ * need to crawl the charts website. The seed file is a tab separated file as read by {@link ChartsItemCsvReader},
+ * optionally gzip compressed. It is streamed to the data store in large batches, on a background thread, so that the
+ * application does not wait for it to start. The ingest lease is held while seeding, and renewed until the seed file
+ * is loaded, so that only one instance seeds and no ingest or replay runs at the same time. This task starts after
+ * the {@link ReplayIngestTask}, so it does not seed a data store that was filled by the replay.
+ */
+@Component
+@Order(2)
+public class SeedLoadTask implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeedLoadTask.class);
+
+    private final ChartsItemDao chartsItemDao;
+
+    private final IngestRunCoordinator runCoordinator;
+
+    private final Resource seedFile;
+
+    private final int batchSize;
+
+    public SeedLoadTask(ChartsItemDao chartsItemDao, IngestRunCoordinator runCoordinator,
+            @Value("${playlists.seed.file:}") Resource seedFile,
+            @Value("${playlists.seed.batch-size:10000}") int batchSize) {
+        this.chartsItemDao = chartsItemDao;
+        this.runCoordinator = runCoordinator;
+        this.seedFile = seedFile;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (seedFile == null || !seedFile.exists()) {
+            LOGGER.info("No seed file to load: {}", seedFile);
+            return;
+        }
+        Thread.ofVirtual().name("seed-loader").start(this::seed);
+    }
+
+    private void seed() {
+        if (chartsItemDao instanceof Initializable init && init.setupStoreWhenNeeded()) {
+            LOGGER.info("New datastore created succesfully");
+        }
+        try {
+            if (!runCoordinator.runWithIngestLease("seed", this::seedEmptyStore)) {
+                LOGGER.info("Not seeding: another instance is writing chart data");
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Seeding from {} failed", seedFile, e);
+        }
+    }
+
+    private void seedEmptyStore() {
+        // another instance may have filled the data store since the watermarks were read
+        chartsItemDao.invalidateWatermarks();
+        var stored = chartsItemDao.getWatermarks().keySet();
+        if (!stored.isEmpty()) {
+            LOGGER.info("Not seeding: the datastore already contains data for {}", stored);
+            return;
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        var startTime = System.currentTimeMillis();
+        long count = 0;
+        try (var reader = new ChartsItemCsvReader(new InputStreamReader(open(), StandardCharsets.UTF_8))) {
+            List<ChartsItem> batch = new ArrayList<>(batchSize);
+            for (var chartsItem = reader.next(); chartsItem.isPresent(); chartsItem = reader.next()) {
+                batch.add(chartsItem.get());
+                if (batch.size() >= batchSize) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new IllegalStateException("Seeding was interrupted after " + count + " chart items");
+                    }
+                    chartsItemDao.insert(batch);
+                    count += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                chartsItemDao.insert(batch);
+                count += batch.size();
+            }
+        }
+        LOGGER.info("Seeded {} chart items from {} in {}ms.", count, seedFile, System.currentTimeMillis() - startTime);
+    }
+
+    private InputStream open() throws IOException {
+        var in = seedFile.getInputStream();
+        var filename = seedFile.getFilename();
+        return filename != null && filename.endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+}
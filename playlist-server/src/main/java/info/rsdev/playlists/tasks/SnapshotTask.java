@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.tasks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import info.rsdev.playlists.dao.InMemoryChartsItemDao;
+import info.rsdev.playlists.services.IngestRunFinished;
+
+/**
+ * Keeps the in-memory chart items and their snapshot up to date: the snapshot is written when the chart items were
+ * loaded from the data store at startup, after every ingest run of this instance and periodically, for the chart items
+ * that were inserted through this instance otherwise, e.g. by the seed loader. Before the snapshot is written, the chart
+ * items are reloaded when the data store contains other editions than the memory, so that the chart items that other
+ * instances store are picked up as well, see {@link InMemoryChartsItemDao#reloadWhenOutdated()}. The chart items are
+ * loaded at startup, on a background thread, so that the first request does not have to wait for them.
+ */
+@Component
+@Profile("InMemory")
+public class SnapshotTask implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotTask.class);
+
+    private final InMemoryChartsItemDao chartsItemDao;
+
+    public SnapshotTask(InMemoryChartsItemDao chartsItemDao) {
+        this.chartsItemDao = chartsItemDao;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        Thread.ofVirtual().name("snapshot-loader").start(this::refresh);
+    }
+
+    @EventListener
+    public void ingestRunFinished(IngestRunFinished event) {
+        refresh();
+    }
+
+    @Scheduled(fixedDelayString = "${playlists.snapshot.refresh-minutes:60}",
+            initialDelayString = "${playlists.snapshot.refresh-minutes:60}", timeUnit = TimeUnit.MINUTES)
+    public void refresh() {
+        try {
+            var startTime = System.currentTimeMillis();
+            if (chartsItemDao.reloadWhenOutdated()) {
+                LOGGER.info("Reloaded the charts from the data store in {}ms.", System.currentTimeMillis() - startTime);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not reload the charts from the data store", e);
+        }
+        try {
+            var startTime = System.currentTimeMillis();
+            if (chartsItemDao.writeSnapshot()) {
+                LOGGER.info("Wrote the snapshot of the charts in {}ms.", System.currentTimeMillis() - startTime);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not write the snapshot of the charts", e);
+        }
+    }
+}
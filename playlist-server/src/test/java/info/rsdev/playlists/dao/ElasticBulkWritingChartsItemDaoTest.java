@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.Song;
+
+public class ElasticBulkWritingChartsItemDaoTest {
+
+    private static final Song RADAR_LOVE = new Song("Golden Earring", "Radar Love");
+    private static final Song VENUS = new Song("Shocking Blue", "Venus");
+
+    private HttpServer elasticsearch;
+
+    private RestHighLevelClient elasticsearchClient;
+
+    private ElasticBulkWritingChartsItemDao dao;
+
+    @Before
+    public void setUp() throws IOException {
+        elasticsearch = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        elasticsearch.createContext("/", this::answer);
+        elasticsearch.start();
+        elasticsearchClient = new RestHighLevelClient(RestClient.builder(
+                new HttpHost("localhost", elasticsearch.getAddress().getPort())));
+        dao = new ElasticBulkWritingChartsItemDao(elasticsearchClient, Duration.ofSeconds(2L));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dao.close();
+        elasticsearchClient.close();
+        elasticsearch.stop(0);
+    }
+
+    @Test
+    public void failedInsertDoesNotKeepLaterInsertsWaiting() {
+        // the second chart item cannot be added to the bulk processor, after the first one was
+        assertThrows(IllegalArgumentException.class, () -> dao.insert(List.of(
+                new ChartsItem("Top 40", (short) 1973, (byte) 31, (byte) 2, true, RADAR_LOVE),
+                new ChartsItem("Hit Parade", (short) 1973, (byte) 31, (byte) 1, true, VENUS))));
+
+        assertDoesNotThrow(() -> dao.insert(List.of(
+                new ChartsItem("Top 40", (short) 1973, (byte) 32, (byte) 1, true, VENUS))));
+    }
+
+    /**
+     * Answers like an elasticsearch node without any partitions, that stores every chart item it is sent
+     */
+    private void answer(HttpExchange exchange) throws IOException {
+        var path = exchange.getRequestURI().getPath();
+        switch (exchange.getRequestMethod()) {
+            case "HEAD" -> exchange.sendResponseHeaders(404, -1L);
+            case "PUT" -> respond(exchange, String.format(
+                    "{\"acknowledged\":true,\"shards_acknowledged\":true,\"index\":\"%s\"}", path.substring(1)));
+            case "POST" -> {
+                var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                // every chart item is an action line followed by a source line
+                var items = (int) body.lines().filter(line -> line.startsWith("{\"index\"")).count();
+                respond(exchange, IntStream.range(0, items)
+                        .mapToObj(item -> String.format("{\"index\":{\"_index\":\"chartitems-1970\",\"_type\":\"_doc\","
+                                + "\"_id\":\"%d\",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":1,"
+                                + "\"successful\":1,\"failed\":0},\"_seq_no\":%d,\"_primary_term\":1,\"status\":201}}",
+                                item, item))
+                        .collect(Collectors.joining(",", "{\"took\":1,\"errors\":false,\"items\":[", "]}")));
+            }
+            default -> exchange.sendResponseHeaders(405, -1L);
+        }
+        exchange.close();
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        var body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
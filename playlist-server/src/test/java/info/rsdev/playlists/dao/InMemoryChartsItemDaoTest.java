@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.EditionCoverage;
+import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.domain.Watermark;
+import info.rsdev.playlists.services.MusicChart;
+
+public class InMemoryChartsItemDaoTest {
+
+    private static final Song RADAR_LOVE = new Song("Golden Earring", "Radar Love");
+    private static final Song VENUS = new Song("Shocking Blue", "Venus");
+    private static final Song LITTLE_GREEN_BAG = new Song("George Baker Selection", "Little Green Bag");
+
+    @Rule
+    public TemporaryFolder snapshotDir = new TemporaryFolder();
+
+    private ListChartsItemDao backingStore;
+
+    private InMemoryChartsItemDao dao;
+
+    @Before
+    public void setUp() {
+        backingStore = new ListChartsItemDao();
+        backingStore.items.add(new ChartsItem("Top 40", (short) 1973, (byte) 31, (byte) 2, true, RADAR_LOVE));
+        backingStore.items.add(new ChartsItem("Tipparade", (short) 1973, (byte) 30, (byte) 4, true, RADAR_LOVE));
+        backingStore.items.add(new ChartsItem("Top 40", (short) 1973, (byte) 31, (byte) 1, true, VENUS));
+        dao = new InMemoryChartsItemDao(backingStore, "");
+    }
+
+    @Test
+    public void answerReleasesInOrderOfFirstEntry() {
+        assertEquals(List.of(RADAR_LOVE, VENUS), List.copyOf(dao.getReleases((short) 1973)));
+        assertEquals(List.of(VENUS, RADAR_LOVE), List.copyOf(dao.getReleases((short) 1973, Set.of(MusicChart.TOP40))));
+        assertTrue(dao.getReleases((short) 1974).isEmpty());
+    }
+
+    @Test
+    public void writeThroughAndAdvance() {
+        dao.insert(List.of(new ChartsItem("Top 40", (short) 1974, (byte) 2, (byte) 7, true, LITTLE_GREEN_BAG),
+                new ChartsItem("Top 40", (short) 1974, (byte) 1, (byte) 3, false, VENUS)));
+
+        assertEquals(5, backingStore.items.size());
+        assertEquals(new Watermark((short) 1974, (byte) 2), dao.getWatermarks().get(MusicChart.TOP40));
+        assertEquals(new Watermark((short) 1973, (byte) 30), dao.getWatermarks().get(MusicChart.TIPPARADE));
+        assertEquals((byte) 31, dao.getHighestWeekStored(MusicChart.TOP40, (short) 1973));
+        assertEquals((byte) -1, dao.getHighestWeekStored(MusicChart.TIPPARADE, (short) 1974));
+        assertEquals(3, dao.getEditionCoverage().size(MusicChart.TOP40));
+        assertEquals(List.of(LITTLE_GREEN_BAG), List.copyOf(dao.getReleases((short) 1974)));
+        assertEquals(5, dao.streamChartsItems().count());
+    }
+
+    @Test
+    public void planWithEditionsOfOtherWriters() {
+        dao.getReleases((short) 1973);
+        // another instance stores an edition in the backing store
+        backingStore.items.add(new ChartsItem("Tipparade", (short) 1973, (byte) 31, (byte) 1, true, VENUS));
+
+        assertEquals(new Watermark((short) 1973, (byte) 31), dao.getWatermarks().get(MusicChart.TIPPARADE));
+        assertTrue(dao.getEditionCoverage().contains(MusicChart.TIPPARADE, (short) 1973, (byte) 31));
+        assertEquals(2, dao.getEditionCoverage(MusicChart.TIPPARADE, (short) 1973).size(MusicChart.TIPPARADE));
+    }
+
+    @Test
+    public void reloadWithEditionsOfOtherWriters() {
+        assertFalse(dao.reloadWhenOutdated(), "The memory has the same editions as the backing store");
+        // another instance stores an edition in the backing store
+        backingStore.items.add(new ChartsItem("Top 40", (short) 1974, (byte) 1, (byte) 5, true, LITTLE_GREEN_BAG));
+        assertTrue(dao.getReleases((short) 1974).isEmpty());
+
+        assertTrue(dao.reloadWhenOutdated());
+        assertEquals(List.of(LITTLE_GREEN_BAG), List.copyOf(dao.getReleases((short) 1974)));
+        assertEquals(4, dao.streamChartsItems().count());
+        assertFalse(dao.reloadWhenOutdated(), "The reloaded memory is up to date");
+    }
+
+    @Test
+    public void insertAgainReplacesTheChartItem() throws IOException {
+        var snapshotFile = snapshotDir.getRoot().toPath().resolve("charts.snapshot").toString();
+        dao = new InMemoryChartsItemDao(backingStore, snapshotFile);
+        assertTrue(dao.writeSnapshot());
+        var handedOut = dao.streamChartsItems();
+
+        dao.insert(List.of(new ChartsItem("Top 40", (short) 1973, (byte) 31, (byte) 1, true, LITTLE_GREEN_BAG),
+                new ChartsItem("Top 40", (short) 1973, (byte) 31, (byte) 2, false, RADAR_LOVE)));
+
+        assertEquals(List.of(RADAR_LOVE, LITTLE_GREEN_BAG), List.copyOf(dao.getReleases((short) 1973)));
+        assertEquals(List.of(LITTLE_GREEN_BAG), List.copyOf(dao.getReleases((short) 1973, Set.of(MusicChart.TOP40))));
+        assertEquals(3, dao.streamChartsItems().count());
+        assertEquals(List.copyOf(backingStore.items.subList(0, 3)), handedOut.toList());
+        assertTrue(dao.writeSnapshot(), "A snapshot with replaced chart items is written again");
+    }
+
+    @Test
+    public void warmStartFromSnapshot() throws IOException {
+        var snapshotFile = snapshotDir.getRoot().toPath().resolve("charts.snapshot").toString();
+        var writer = new InMemoryChartsItemDao(backingStore, snapshotFile);
+        assertTrue(writer.writeSnapshot());
+
+        // the data store cannot be reached, so the snapshot is served as is
+        var unreachableStore = new ListChartsItemDao();
+        unreachableStore.reachable = false;
+        var reader = new InMemoryChartsItemDao(unreachableStore, snapshotFile);
+        assertEquals(List.of(RADAR_LOVE, VENUS), List.copyOf(reader.getReleases((short) 1973)));
+        assertEquals(List.copyOf(backingStore.items), reader.streamChartsItems().toList());
+        assertFalse(reader.writeSnapshot(), "An unchanged snapshot is not written again");
+    }
+
+    @Test
+    public void snapshotIsOutdatedWhenAHoleWasFilled() throws IOException {
+        var snapshotFile = snapshotDir.getRoot().toPath().resolve("charts.snapshot").toString();
+        assertTrue(new InMemoryChartsItemDao(backingStore, snapshotFile).writeSnapshot());
+        // another writer fills a hole before the latest edition, so the latest edition of every chart stays the same
+        backingStore.items.add(new ChartsItem("Top 40", (short) 1973, (byte) 30, (byte) 1, true, LITTLE_GREEN_BAG));
+
+        var reader = new InMemoryChartsItemDao(backingStore, snapshotFile);
+        assertEquals(4, reader.streamChartsItems().count());
+        assertTrue(reader.writeSnapshot(), "The outdated snapshot is replaced");
+    }
+
+    /**
+     * Keeps the chart items in a list and only supports what the in-memory dao needs from its backing store
+     */
+    private static class ListChartsItemDao implements ChartsItemDao {
+
+        private final List<ChartsItem> items = new ArrayList<>();
+
+        private boolean reachable = true;
+
+        @Override
+        public void insert(ChartsItem chartsItem) {
+            items.add(chartsItem);
+        }
+
+        @Override
+        public void insert(List<ChartsItem> chartsItems) {
+            items.addAll(chartsItems);
+        }
+
+        @Override
+        public Stream<ChartsItem> streamChartsItems() {
+            return List.copyOf(items).stream();
+        }
+
+        @Override
+        public Collection<Song> getReleases(short year, Set<MusicChart> charts) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public short getHighestYearStored(MusicChart chart) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte getHighestWeekStored(MusicChart chart, short year) {
+            return (byte) items.stream().filter(item -> item.chartName().equals(chart.chartName()) && item.year() == year)
+                    .mapToInt(ChartsItem::weekNumber).max().orElse(-1);
+        }
+
+        @Override
+        public Map<MusicChart, Watermark> getWatermarks() {
+            Map<MusicChart, Watermark> watermarks = new EnumMap<>(MusicChart.class);
+            items.forEach(item -> watermarks.merge(MusicChart.fromChartName(item.chartName()).orElseThrow(),
+                    new Watermark(item.year(), item.weekNumber()), Watermark::max));
+            return watermarks;
+        }
+
+        @Override
+        public EditionCoverage getEditionCoverage() {
+            if (!reachable) {
+                throw new IllegalStateException("The data store cannot be reached");
+            }
+            var coverage = new EditionCoverage();
+            items.forEach(item -> coverage.add(MusicChart.fromChartName(item.chartName()).orElseThrow(), item.year(),
+                    item.weekNumber()));
+            return coverage;
+        }
+
+        @Override
+        public EditionCoverage getEditionCoverage(MusicChart chart, short year) {
+            var coverage = new EditionCoverage();
+            items.stream().filter(item -> item.chartName().equals(chart.chartName()) && item.year() == year)
+                    .forEach(item -> coverage.add(chart, year, item.weekNumber()));
+            return coverage;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.domain.Watermark;
+import info.rsdev.playlists.services.MusicChart;
+
+public class WatermarkCacheTest {
+
+    private static final Song SONG = new Song("Golden Earring", "Radar Love");
+
+    @Test
+    public void loadOnceAndAdvanceWithInserts() {
+        var loads = new AtomicInteger();
+        var cache = new WatermarkCache();
+        Supplier<Map<MusicChart, Watermark>> loader = () -> {
+            loads.incrementAndGet();
+            return Map.of(MusicChart.TOP40, new Watermark((short) 1973, (byte) 30));
+        };
+
+        assertNull(cache.get(loader).get(MusicChart.TIPPARADE));
+        cache.advance(List.of(new ChartsItem("Top 40", (short) 1973, (byte) 31, (byte) 1, false, SONG),
+                new ChartsItem("Top 40", (short) 1973, (byte) 29, (byte) 1, false, SONG),
+                new ChartsItem("Tipparade", (short) 1973, (byte) 31, (byte) 5, true, SONG)));
+
+        var watermarks = cache.get(loader);
+        assertEquals(new Watermark((short) 1973, (byte) 31), watermarks.get(MusicChart.TOP40));
+        assertEquals(new Watermark((short) 1973, (byte) 31), watermarks.get(MusicChart.TIPPARADE));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void loadAgainWhenInvalidatedOrTooOld() {
+        var loads = new AtomicInteger();
+        Supplier<Map<MusicChart, Watermark>> loader = () -> Map.of(MusicChart.TOP40,
+                new Watermark((short) 1973, (byte) loads.incrementAndGet()));
+
+        var cache = new WatermarkCache();
+        cache.get(loader);
+        cache.invalidate();
+        assertEquals(new Watermark((short) 1973, (byte) 2), cache.get(loader).get(MusicChart.TOP40));
+
+        var expiringCache = new WatermarkCache(Duration.ZERO);
+        expiringCache.get(loader);
+        assertEquals(new Watermark((short) 1973, (byte) 4), expiringCache.get(loader).get(MusicChart.TOP40));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import info.rsdev.playlists.domain.ChartsItem;
+import info.rsdev.playlists.domain.Song;
+
+public class ChartsItemCsvReaderTest {
+
+    @Test
+    public void readEnclosedAndEscapedFields() throws IOException {
+        var csv = "chart_id\tyear\tweek_number\tposition\tis_newcommer\tartist\ttitle\n"
+                + "`Top 40`\t1965\t1\t1\t1\t`The Beatles`\t`I Feel Fine`\n"
+                + "`Tipparade`\t1967\t28\t12\t0\t`Sam \\`n\\` Dave`\t`Tab\\\ttitle`\n";
+        try (var reader = new ChartsItemCsvReader(new StringReader(csv))) {
+            assertEquals(new ChartsItem("Top 40", (short) 1965, (byte) 1, (byte) 1, true,
+                    new Song("The Beatles", "I Feel Fine")), reader.next().orElseThrow());
+            var second = reader.next().orElseThrow();
+            assertFalse(second.isNewRelease());
+            assertEquals(new Song("Sam `n` Dave", "Tab\ttitle"), second.song());
+            assertTrue(reader.next().isEmpty());
+        }
+    }
+
+    @Test
+    public void malformedLineIsReported() {
+        var reader = new ChartsItemCsvReader(new StringReader("`Top 40`\t1965\t1\n"));
+        assertThrows(IOException.class, reader::next);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import info.rsdev.playlists.exception.FailedHostException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FetchRetryPolicyTest {
+
+    private static final String HOST = "www.top40.nl";
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private FetchRetryPolicy policyUnderTest;
+
+    @Before
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        policyUnderTest = new FetchRetryPolicy(meterRegistry, 3, 1L, 5L, 4, 10, 5L, 2);
+    }
+
+    @Test
+    public void transientFailureIsRetried() {
+        var attempts = new AtomicInteger();
+        var result = policyUnderTest.execute(HOST, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("503 Service Unavailable");
+            }
+            return "page";
+        });
+        assertEquals("page", result);
+        assertEquals(2.0d, meterRegistry.counter("playlists.fetch.retries", "host", HOST).count());
+    }
+
+    @Test
+    public void retryBudgetIsSharedWithinRun() {
+        // the circuit does not open before the budget is used up
+        var policy = new FetchRetryPolicy(meterRegistry, 10, 1L, 5L, 4, 10, 5L, 2);
+        var attempts = new AtomicInteger();
+        FetchRetryPolicy.Request<String> failing = () -> {
+            attempts.incrementAndGet();
+            throw new IOException("timeout");
+        };
+        assertThrows(FailedHostException.class, () -> policy.execute(HOST, failing));
+        assertEquals(5, attempts.get());
+        // the first request used up the budget of four retries, so the second one is not retried
+        assertThrows(FailedHostException.class, () -> policy.execute(HOST, failing));
+        assertEquals(6, attempts.get());
+
+        policy.startRun();
+        assertEquals("page", policy.execute(HOST, () -> "page"));
+    }
+
+    @Test
+    public void circuitOpensBeforeRequestGivesUpWithDefaults() {
+        // the default configuration, with shorter waits
+        var policy = new FetchRetryPolicy(meterRegistry, 4, 1L, 5L, 100, 5, 5L, 5);
+        var attempts = new AtomicInteger();
+        var result = policy.execute(HOST, () -> {
+            if (attempts.incrementAndGet() <= 4) {
+                throw new IOException("503 Service Unavailable");
+            }
+            return "page";
+        });
+        // the last of the four attempts opened the circuit, and the probe after the pause succeeded
+        assertEquals("page", result);
+        assertEquals(5, attempts.get());
+        assertEquals(1.0d, meterRegistry.counter("playlists.fetch.circuit.opened", "host", HOST).count());
+    }
+
+    @Test
+    public void hostIsDownWhenCircuitKeepsOpening() {
+        var attempts = new AtomicInteger();
+        assertThrows(FailedHostException.class, () -> policyUnderTest.execute(HOST, () -> {
+            attempts.incrementAndGet();
+            throw new IOException("connection refused");
+        }));
+        // three attempts open the circuit, and the failed probes open it two more times
+        assertEquals(5, attempts.get());
+    }
+
+    @Test
+    public void hostIsDownWhenCircuitCanBeProbedAtOnce() {
+        // the circuit is open for no time at all, so it can always be probed when the next attempt asks permission
+        var policy = new FetchRetryPolicy(meterRegistry, 3, 1L, 5L, 4, 10, 0L, 2);
+        var attempts = new AtomicInteger();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(FailedHostException.class,
+                () -> policy.execute(HOST, () -> {
+                    attempts.incrementAndGet();
+                    throw new IOException("connection refused");
+                })));
+        assertEquals(5, attempts.get());
+    }
+
+    @Test
+    public void fatalFailureIsNotRetried() {
+        var attempts = new AtomicInteger();
+        assertThrows(FailedHostException.class, () -> policyUnderTest.execute(HOST, () -> {
+            attempts.incrementAndGet();
+            throw new FailedHostException("403 Forbidden");
+        }));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void probeThatThrowsDoesNotBlockTheHost() {
+        var policy = new FetchRetryPolicy(meterRegistry, 1, 1L, 5L, 4, 1, 5L, 2);
+        var attempts = new AtomicInteger();
+        assertThrows(UncheckedIOException.class, () -> policy.execute(HOST, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("timeout");
+            }
+            throw new UncheckedIOException(new IOException("archive not writable"));
+        }));
+        assertEquals(2, attempts.get());
+        assertEquals("page", assertTimeoutPreemptively(Duration.ofSeconds(5), () -> policy.execute(HOST, () -> "page")));
+    }
+
+    @Test
+    public void openCircuitIsProbedAndCloses() {
+        var circuitBreaker = new HostCircuitBreaker(2, 100L);
+        circuitBreaker.onFailure(0L);
+        circuitBreaker.onFailure(0L);
+        assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertEquals(60L, circuitBreaker.acquire(40L));
+        assertEquals(0L, circuitBreaker.acquire(100L));
+        // only a single probe is let through
+        assertEquals(1000L, circuitBreaker.acquire(100L));
+        circuitBreaker.onSuccess();
+        assertEquals(0L, circuitBreaker.acquire(101L));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static info.rsdev.playlists.services.MusicChart.TIPPARADE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import info.rsdev.playlists.dao.EditionCalendarDao;
+import info.rsdev.playlists.domain.EditionCoverage;
+
+public class IngestPlannerTest {
+
+    private final IngestPlanner plannerUnderTest = new IngestPlanner();
+
+    private final List<ChartEdition> storedAbsentEditions = new ArrayList<>();
+
+    private final EditionCalendar calendar = new EditionCalendar(new EditionCalendarDao() {
+        @Override
+        public List<ChartEdition> getAbsentEditions() {
+            return List.copyOf(storedAbsentEditions);
+        }
+
+        @Override
+        public void addAbsentEdition(ChartEdition edition) {
+            storedAbsentEditions.add(edition);
+        }
+    });
+
+    @Test
+    public void emptyStoreMissesAllEditionsSinceChartStarted() {
+        var missing = plannerUnderTest.getMissingEditions(TIPPARADE, new EditionCoverage(), calendar, LocalDate.of(1967, 8, 1));
+        assertEquals(List.of(new ChartEdition(TIPPARADE, (short) 1967, (byte) 28),
+                new ChartEdition(TIPPARADE, (short) 1967, (byte) 29),
+                new ChartEdition(TIPPARADE, (short) 1967, (byte) 30),
+                new ChartEdition(TIPPARADE, (short) 1967, (byte) 31)), missing);
+    }
+
+    @Test
+    public void holesAreDetected() {
+        var coverage = new EditionCoverage();
+        for (byte week = 28; week <= 31; week++) {
+            if (week != 29) {
+                coverage.add(TIPPARADE, (short) 1967, week);
+            }
+        }
+        var missing = plannerUnderTest.getMissingEditions(TIPPARADE, coverage, calendar, LocalDate.of(1967, 8, 1));
+        assertEquals(List.of(new ChartEdition(TIPPARADE, (short) 1967, (byte) 29)), missing);
+        assertEquals(3, coverage.size(TIPPARADE));
+    }
+
+    @Test
+    public void absentEditionsAreSkipped() {
+        var today = LocalDate.of(1969, 8, 1);
+        var coverage = new EditionCoverage();
+        for (short year = 1967; year <= 1968; year++) {
+            for (byte week = 1; week <= 52; week++) {
+                coverage.add(TIPPARADE, year, week);
+            }
+        }
+        // another instance found out about week 53 of 1967 already
+        storedAbsentEditions.add(new ChartEdition(TIPPARADE, (short) 1967, (byte) 53));
+        calendar.refresh();
+        assertFalse(calendar.markAbsent(new ChartEdition(TIPPARADE, (short) 1967, (byte) 53), today));
+        assertFalse(calendar.markAbsent(new ChartEdition(TIPPARADE, (short) 1969, (byte) 1), today));
+        assertTrue(calendar.markAbsent(new ChartEdition(TIPPARADE, (short) 1968, (byte) 1), today));
+        assertEquals(2, storedAbsentEditions.size());
+
+        var missing = plannerUnderTest.getMissingEditions(TIPPARADE, coverage, calendar, today);
+        // week 53 of 1968 is unknown, and 1969 is in week 31
+        assertEquals(new ChartEdition(TIPPARADE, (short) 1968, (byte) 53), missing.get(0));
+        assertEquals(32, missing.size());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import info.rsdev.playlists.dao.IngestLeaseDao;
+import info.rsdev.playlists.domain.Song;
+import info.rsdev.playlists.services.IngestRunCoordinator.Outcome;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class IngestRunCoordinatorTest {
+
+    @Test
+    public void concurrentTriggersCoalesce() throws Exception {
+        var runStarted = new CountDownLatch(1);
+        var finishRun = new CountDownLatch(1);
+        var titleService = new CountingTitleService(() -> {
+            runStarted.countDown();
+            await(finishRun);
+        });
+        var leaseDao = new InMemoryLeaseDao();
+        var events = new ArrayList<Object>();
+        var coordinator = new IngestRunCoordinator(titleService, leaseDao, new SimpleMeterRegistry(), events::add, 600L, false);
+
+        var first = new Thread(coordinator::runOrJoin);
+        first.start();
+        runStarted.await();
+        var joined = coordinator.runOrJoin();
+        finishRun.countDown();
+        first.join();
+
+        assertEquals(Outcome.COMPLETED, joined.get());
+        assertEquals(1, titleService.runs.get());
+        assertEquals(List.of(Outcome.COMPLETED.name()), leaseDao.recordedOutcomes);
+        assertNull(leaseDao.owner);
+        assertEquals(1, events.size());
+        assertSame(Outcome.COMPLETED, ((IngestRunFinished) events.get(0)).outcome());
+    }
+
+    @Test
+    public void skipWhenLeaseIsHeldElsewhere() throws Exception {
+        var titleService = new CountingTitleService(() -> {});
+        var leaseDao = new InMemoryLeaseDao();
+        leaseDao.owner = "other-instance";
+        var meterRegistry = new SimpleMeterRegistry();
+        var coordinator = new IngestRunCoordinator(titleService, leaseDao, meterRegistry, event -> {}, 600L, false);
+
+        assertSame(Outcome.SKIPPED, coordinator.runOrJoin().get());
+        assertEquals(0, titleService.runs.get());
+        assertEquals(1.0d, meterRegistry.counter("playlists.ingest.run.skipped").count());
+    }
+
+    @Test
+    public void shardedRunIsSkippedWhileOtherWorkHoldsTheLease() throws Exception {
+        var titleService = new CountingTitleService(() -> {});
+        var leaseDao = new InMemoryLeaseDao();
+        var coordinator = new IngestRunCoordinator(titleService, leaseDao, new SimpleMeterRegistry(), event -> {}, 600L, true);
+
+        var outcomes = new ArrayList<Outcome>();
+        assertTrue(coordinator.runWithIngestLease("replay", () -> outcomes.add(coordinator.runOrJoin().join())));
+        assertEquals(List.of(Outcome.SKIPPED), outcomes);
+        assertEquals(0, titleService.runs.get());
+        assertNull(leaseDao.owner);
+
+        leaseDao.owner = "other-instance";
+        assertFalse(coordinator.runWithIngestLease("seed", () -> outcomes.add(Outcome.COMPLETED)));
+        assertEquals(1, outcomes.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class CountingTitleService implements MusicTitleService {
+        private final AtomicInteger runs = new AtomicInteger();
+        private final Runnable work;
+
+        private CountingTitleService(Runnable work) {
+            this.work = work;
+        }
+
+        @Override
+        public void init() {
+            runs.incrementAndGet();
+            work.run();
+        }
+
+        @Override
+        public List<Song> getChartedSongsForYear(short year, Set<MusicChart> charts) {
+            return List.of();
+        }
+    }
+
+    private static class InMemoryLeaseDao implements IngestLeaseDao {
+        private String owner;
+        private final List<String> recordedOutcomes = new ArrayList<>();
+
+        @Override
+        public synchronized boolean acquire(String leaseName, String owner, Duration duration) {
+            if (this.owner == null || this.owner.equals(owner)) {
+                this.owner = owner;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized boolean renew(String leaseName, String owner, Duration duration) {
+            return owner.equals(this.owner);
+        }
+
+        @Override
+        public synchronized void release(String leaseName, String owner) {
+            if (owner.equals(this.owner)) {
+                this.owner = null;
+            }
+        }
+
+        @Override
+        public synchronized boolean isHeld(String leaseName) {
+            return owner != null;
+        }
+
+        @Override
+        public synchronized void recordRun(String owner, Instant startedAt, Duration duration, String outcome,
+                String message) {
+            recordedOutcomes.add(outcome);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+import info.rsdev.playlists.dao.WorkLeaseDao;
+import info.rsdev.playlists.exception.FailedHostException;
+
+public class IngestWorkLeasesTest {
+
+    private static final MusicChart CHART = MusicChart.TIPPARADE;
+
+    private InMemoryWorkLeaseDao workLeaseDao;
+
+    private IngestWorkLeases leasesUnderTest;
+
+    @Before
+    public void setup() {
+        workLeaseDao = new InMemoryWorkLeaseDao();
+        leasesUnderTest = new IngestWorkLeases(workLeaseDao, true, 3L);
+    }
+
+    @Test
+    public void yearsLeasedElsewhereAreLeftToTheirOwner() {
+        workLeaseDao.owners.put((short) 1968, "other-instance");
+        List<Short> ingested = new ArrayList<>();
+
+        leasesUnderTest.forEachClaimedYear(CHART, List.of((short) 1967, (short) 1968, (short) 1969),
+                leasesUnderTest.startRun(), ingested::add);
+
+        assertEquals(List.of((short) 1967, (short) 1969), ingested);
+        assertEquals(Set.of((short) 1967, (short) 1968, (short) 1969), workLeaseDao.done);
+    }
+
+    @Test
+    public void failedYearIsReleased() {
+        assertThrows(FailedHostException.class, () -> leasesUnderTest.forEachClaimedYear(CHART, List.of((short) 1967),
+                leasesUnderTest.startRun(), year -> {
+                    throw new FailedHostException("Website down?");
+                }));
+        assertTrue(workLeaseDao.owners.isEmpty());
+        assertTrue(workLeaseDao.done.isEmpty());
+    }
+
+    @Test
+    public void transientRenewalFailureIsRetried() {
+        workLeaseDao.failingRenewals = 1;
+        List<Short> ingested = new ArrayList<>();
+
+        // the first renewal after one second fails, the retry a tenth of a second later succeeds
+        leasesUnderTest.forEachClaimedYear(CHART, List.of((short) 1967), leasesUnderTest.startRun(), year -> {
+            sleep(1500L);
+            ingested.add(year);
+        });
+
+        assertEquals(List.of((short) 1967), ingested);
+        assertEquals(Set.of((short) 1967), workLeaseDao.done);
+    }
+
+    @Test
+    public void lostLeaseStopsTheWork() {
+        var thrown = assertThrows(IllegalStateException.class, () -> leasesUnderTest.forEachClaimedYear(CHART,
+                List.of((short) 1967), leasesUnderTest.startRun(), year -> {
+                    workLeaseDao.owners.put(year, "other-instance");
+                    sleep(5000L);
+                }));
+        assertTrue(thrown.getMessage().contains("lease was lost"));
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertTrue(workLeaseDao.done.isEmpty());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    /**
+     * Another instance holds some years; it finishes them the first time it is asked whether they are done
+     */
+    private static class InMemoryWorkLeaseDao implements WorkLeaseDao {
+        private final Map<Short, String> owners = new ConcurrentHashMap<>();
+        private final Set<Short> done = new HashSet<>();
+        private int failingRenewals;
+
+        @Override
+        public Instant currentTime() {
+            return Instant.now();
+        }
+
+        @Override
+        public boolean claim(MusicChart chart, short year, String owner, Duration duration, Instant notDoneSince) {
+            if (done.contains(year) || owners.containsKey(year)) {
+                return false;
+            }
+            owners.put(year, owner);
+            return true;
+        }
+
+        @Override
+        public boolean isDone(MusicChart chart, short year, Instant since) {
+            var isDone = done.contains(year);
+            if (owners.remove(year) != null) {
+                done.add(year);
+            }
+            return isDone;
+        }
+
+        @Override
+        public synchronized boolean renew(MusicChart chart, short year, String owner, Duration duration) {
+            if (failingRenewals > 0) {
+                failingRenewals--;
+                throw new TransientDataAccessResourceException("The database is unreachable");
+            }
+            return owner.equals(owners.get(year));
+        }
+
+        @Override
+        public void complete(MusicChart chart, short year, String owner) {
+            owners.remove(year);
+            done.add(year);
+        }
+
+        @Override
+        public void release(MusicChart chart, short year, String owner) {
+            owners.remove(year);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024 Red Star Development.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.rsdev.playlists.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rsdev.playlists.services.PageArchive.ArchivedPage;
+
+public class PageArchiveTest {
+
+    private static final String URL = "https://www.top40.nl/top40/2023/week-34";
+
+    @Rule
+    public TemporaryFolder archiveDir = new TemporaryFolder();
+
+    @Test
+    public void roundTripArchivedPage() {
+        var archive = new PageArchive(archiveDir.getRoot().toString());
+        var html = "<html><title>Top 40-lijst van week 34, 2023</title></html>".getBytes(StandardCharsets.UTF_8);
+        archive.put(new ArchivedPage(URL, html, "\"abc\"", null));
+
+        var archived = archive.get(URL).orElseThrow();
+        assertArrayEquals(html, archived.html());
+        assertEquals("\"abc\"", archived.etag());
+        assertNull(archived.lastModified());
+        assertTrue(archive.get(URL.replace("34", "35")).isEmpty());
+    }
+
+    @Test
+    public void disabledArchiveStoresNothing() {
+        var archive = new PageArchive("");
+        archive.put(new ArchivedPage(URL, new byte[] { 1 }, null, null));
+        assertFalse(archive.isEnabled());
+        assertTrue(archive.get(URL).isEmpty());
+    }
+}
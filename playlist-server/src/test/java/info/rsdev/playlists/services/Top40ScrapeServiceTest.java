@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -50,4 +51,25 @@ public class Top40ScrapeServiceTest {
         var hits = serviceUnderTest.scrape(tipparadeDocumentFetcher);
         assertEquals(30, hits.size());
     }
+
+    @Test
+    public void streamingParserScrapesSameTop40() {
+        var streamingService = new Top40ScrapeService(true);
+        assertEquals(serviceUnderTest.scrape(top40DocumentFetcher), streamingService.scrape(top40DocumentFetcher));
+    }
+
+    @Test
+    public void streamingParserScrapesSameTipparade() {
+        var streamingService = new Top40ScrapeService(true);
+        assertEquals(serviceUnderTest.scrape(tipparadeDocumentFetcher), streamingService.scrape(tipparadeDocumentFetcher));
+    }
+
+    @Test
+    public void editionIsToldByUrlOrSavedPath() {
+        assertEquals(Optional.of(new ChartEdition(MusicChart.TIPPARADE, (short) 1972, (byte) 7)),
+                serviceUnderTest.getEdition("https://www.top40.nl/TIPPARADE/1972/week-7"));
+        assertEquals(Optional.of(new ChartEdition(MusicChart.TOP40, (short) 1965, (byte) 12)),
+                serviceUnderTest.getEdition(Paths.get("replay", "TOP40", "1965", "week-12.html.gz").toString()));
+        assertEquals(Optional.empty(), serviceUnderTest.getEdition("6b86b273ff34fce19d6b804eff5a3f57.html.gz"));
+    }
 }
@@ -20,6 +20,9 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 
@@ -34,6 +37,15 @@ public record TestFileDocumentFetcher(Path fileLocation) implements DocumentFetc
             }
         }
 
+        @Override
+        public Optional<Reader> fetchSource() {
+            try {
+                return Optional.of(Files.newBufferedReader(fileLocation, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         @Override
         public String location() {
             return fileLocation.toString();